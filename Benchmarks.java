@@ -0,0 +1,357 @@
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.*;
+import java.util.regex.Pattern;
+
+/**
+ * Microbenchmarks of the hot paths of the renderer: math, rasterization, texturing and output encoding.
+ *
+ * This file is optional. Compile it after `ThreeDee.java` with `javac Benchmarks.java`, and run it with `java Benchmarks [regex]`.
+ *
+ * JMH can't be used for this: it only accepts benchmarks inside a named package, and classes inside a named package can't use the classes of `ThreeDee.java` (which are in the unnamed package).
+ * Instead, this is a small harness that works the same way: every benchmark is calibrated to run for a fixed time per iteration, warmed up, and then measured.
+ * Besides the average time per operation, it reports the same numbers as the JMH GC profiler: allocation rate, allocated bytes per operation, and number and time of collections.
+ */
+class Benchmarks
+{
+	interface Operation
+	{
+		/**
+		 * Runs the operation once.
+		 * @return Any value derived from the result, so the JIT compiler can't remove the work as dead code.
+		 */
+		long run();
+	}
+
+	static class Result
+	{
+		String name;
+		double nanosPerOp, nanosPerOpError;
+		double allocationRate, bytesPerOp;
+		long gcCount, gcMillis;
+	}
+
+	// Discards everything written to it (the encoder benchmarks measure encoding, not the terminal).
+	static class NullChannel implements WritableByteChannel
+	{
+		public int write(ByteBuffer src)
+		{
+			int remaining = src.remaining();
+			src.position(src.limit());
+			return remaining;
+		}
+
+		public boolean isOpen()
+		{
+			return true;
+		}
+
+		public void close()
+		{}
+	}
+
+	// Resolutions from `BENCHMARKS.md`.
+	static final Vector2i[] RESOLUTIONS = new Vector2i[]
+	{
+		new Vector2i(80, 25),
+		new Vector2i(160, 50),
+		new Vector2i(168, 38),
+		new Vector2i(177, 52),
+		new Vector2i(282, 76),
+		new Vector2i(284, 69),
+	};
+
+	static int warmupIterations = 5;
+	static int measurementIterations = 5;
+	static long iterationMillis = 200;
+
+	// Results of every operation are accumulated here (the equivalent of JMH's blackhole).
+	static volatile long sink;
+
+	static final com.sun.management.ThreadMXBean THREAD_BEAN = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+	static LinkedHashMap<String, Operation> benchmarks = new LinkedHashMap<String, Operation>();
+
+	public static void main(String[] args) throws Exception
+	{
+		Pattern filter = Pattern.compile(".*");
+		for (String arg : args)
+		{
+			String[] argkv = arg.split("=", 2);
+			switch (argkv[0])
+			{
+				case "--warmup":
+					warmupIterations = Integer.parseInt(argkv[1]);
+					break;
+
+				case "--iterations":
+					measurementIterations = Integer.parseInt(argkv[1]);
+					break;
+
+				case "--time":
+					iterationMillis = Long.parseLong(argkv[1]);
+					break;
+
+				default:
+					filter = Pattern.compile(arg);
+					break;
+			}
+		}
+
+		addMathBenchmarks();
+		addRasterizationBenchmarks();
+		addTexturingBenchmarks();
+		addFramebufferBenchmarks();
+		addEncoderBenchmarks();
+
+		System.out.printf("%d warmup and %d measurement iterations of %d ms%n", warmupIterations, measurementIterations, iterationMillis);
+		System.out.println(SimdSupport.describe());
+		System.out.printf("%-48s %16s %12s %12s %8s %8s%n", "Benchmark", "ns/op", "MB/s alloc", "B/op", "GCs", "GC ms");
+		for (Map.Entry<String, Operation> entry : benchmarks.entrySet())
+		{
+			if (!filter.matcher(entry.getKey()).find())
+			{
+				continue;
+			}
+			Result result = measure(entry.getKey(), entry.getValue());
+			System.out.printf("%-48s %9.1f \u00b1 %4.1f %12.1f %12.1f %8d %8d%n",
+				result.name, result.nanosPerOp, result.nanosPerOpError, result.allocationRate, result.bytesPerOp, result.gcCount, result.gcMillis);
+		}
+	}
+
+	//#region Harness
+	static Result measure(String name, Operation operation)
+	{
+		// Find how many operations fit in one iteration.
+		long operations = 1;
+		while (true)
+		{
+			long start = System.nanoTime();
+			runOperations(operation, operations);
+			long elapsed = System.nanoTime() - start;
+			if (elapsed > iterationMillis * 1000000 / 10)
+			{
+				operations = Math.max(1, operations * iterationMillis * 1000000 / elapsed);
+				break;
+			}
+			operations *= 2;
+		}
+
+		for (int i = 0; i < warmupIterations; i++)
+		{
+			runOperations(operation, operations);
+		}
+
+		long threadId = Thread.currentThread().getId();
+		double[] nanosPerOp = new double[measurementIterations];
+		long totalNanos = 0, totalBytes = 0;
+		long gcCountStart = getGcCount(), gcMillisStart = getGcMillis();
+		for (int i = 0; i < measurementIterations; i++)
+		{
+			long bytesStart = THREAD_BEAN.getThreadAllocatedBytes(threadId);
+			long start = System.nanoTime();
+			runOperations(operation, operations);
+			long elapsed = System.nanoTime() - start;
+			totalBytes += THREAD_BEAN.getThreadAllocatedBytes(threadId) - bytesStart;
+			totalNanos += elapsed;
+			nanosPerOp[i] = elapsed / (double) operations;
+		}
+
+		Result result = new Result();
+		result.name = name;
+		result.nanosPerOp = totalNanos / (double) (operations * measurementIterations);
+		double variance = 0;
+		for (double value : nanosPerOp)
+		{
+			variance += (value - result.nanosPerOp) * (value - result.nanosPerOp);
+		}
+		result.nanosPerOpError = measurementIterations > 1 ? Math.sqrt(variance / (measurementIterations - 1)) : 0;
+		result.allocationRate = totalBytes / (totalNanos / 1e9) / (1024 * 1024);
+		result.bytesPerOp = totalBytes / (double) (operations * measurementIterations);
+		result.gcCount = getGcCount() - gcCountStart;
+		result.gcMillis = getGcMillis() - gcMillisStart;
+		return result;
+	}
+
+	static void runOperations(Operation operation, long operations)
+	{
+		long accumulator = 0;
+		for (long i = 0; i < operations; i++)
+		{
+			accumulator += operation.run();
+		}
+		sink += accumulator;
+	}
+
+	static long getGcCount()
+	{
+		long count = 0;
+		for (GarbageCollectorMXBean bean : ManagementFactory.getGarbageCollectorMXBeans())
+		{
+			count += Math.max(0, bean.getCollectionCount());
+		}
+		return count;
+	}
+
+	static long getGcMillis()
+	{
+		long millis = 0;
+		for (GarbageCollectorMXBean bean : ManagementFactory.getGarbageCollectorMXBeans())
+		{
+			millis += Math.max(0, bean.getCollectionTime());
+		}
+		return millis;
+	}
+	//#endregion
+
+	//#region Benchmarks
+	static void addMathBenchmarks()
+	{
+		Matrix4x4f left = Matrix4x4f.rotation(Vector4f.fromEulerAngles(0.3f, 0.2f, 0.1f));
+		Matrix4x4f right = Matrix4x4f.translation(new Vector3f(0.5f, -0.25f, 1.5f));
+		Vector4f vector = new Vector4f(0.5f, -0.5f, 0.5f, 1.0f);
+		float[] angle = new float[1];
+
+		benchmarks.put("Matrix4x4f.multiply(Matrix4x4f)", () -> (long) left.multiply(right).A14);
+		benchmarks.put("Matrix4x4f.multiply(Vector4f)", () -> (long) left.multiply(vector).X);
+		benchmarks.put("Matrix4x4f.multiply(Vector4f, normalize)", () -> (long) left.multiply(vector, true).X);
+		benchmarks.put("Vector4f.fromEulerAngles", () ->
+		{
+			angle[0] += 0.01f; // Different angles every time, so the result can't be hoisted out of the loop.
+			return (long) Vector4f.fromEulerAngles(angle[0], 0, angle[0] * 1.5f).W;
+		});
+	}
+
+	static void addRasterizationBenchmarks()
+	{
+		Vector2i size = new Vector2i(160, 50);
+
+		// Three counterclockwise triangles (on screen): small, medium and covering the whole framebuffer.
+		VertexBuffer vertices = new VertexBuffer();
+		vertices.count = 9;
+		vertices.x = new float[] { 10, 14, 12,    20, 100, 60,     -10, 400, -10 };
+		vertices.y = new float[] { 10, 10, 14,    5, 5, 45,        -10, -10, 200 };
+		vertices.z = new float[] { 2, 2, 2,       2, 2, 2,         2, 2, 2 };
+		vertices.u = new float[] { 0, 1, 0,       0, 1, 0,         0, 1, 0 };
+		vertices.v = new float[] { 0, 0, 1,       0, 0, 1,         0, 0, 1 };
+
+		// Only counts the fragments, so the numbers only depend on the rasterizer.
+		long[] fragments = new long[1];
+		FragmentSink countingSink = (x, y, z, u, v, uFootprint, vFootprint) -> fragments[0]++;
+
+		benchmarks.put("BasicShaders.face small", () -> BasicShaders.face(vertices, 0, 1, 2, size, countingSink));
+		benchmarks.put("BasicShaders.face medium", () -> BasicShaders.face(vertices, 3, 4, 5, size, countingSink));
+		benchmarks.put("BasicShaders.face full", () -> BasicShaders.face(vertices, 6, 7, 8, size, countingSink));
+
+		// The whole fragment path (depth test, texture sampling and shading). Includes clearing the framebuffer (see `Framebuffer.clear`), otherwise every fragment after the first operation fails the depth test.
+		Framebuffer framebuffer = new Framebuffer(size.X, size.Y, 0x000000);
+		TexturedFragmentSink texturedSink = new TexturedFragmentSink(framebuffer, ThreeDee.defaultTexture);
+		benchmarks.put("BasicShaders.face full textured", () ->
+		{
+			framebuffer.clear();
+			return BasicShaders.face(vertices, 6, 7, 8, size, texturedSink);
+		});
+
+		// A diagonal line (an edge of the medium triangle), which also clears the framebuffer for the same reason.
+		benchmarks.put("BasicShaders.line", () ->
+		{
+			framebuffer.clear();
+			return BasicShaders.line(vertices, 3, 5, framebuffer, 0, 0, size.X, size.Y, SceneRasterizer.LINE_COLOR);
+		});
+	}
+
+	static void addTexturingBenchmarks()
+	{
+		float[] uv = new float[1];
+		benchmarks.put("Texture.getNdcPixel", () ->
+		{
+			uv[0] += 0.001f;
+			if (uv[0] > 1)
+			{
+				uv[0] = 0;
+			}
+			return ThreeDee.defaultTexture.getNdcPixel(uv[0], 1 - uv[0]);
+		});
+
+		// A large texture minified onto a small terminal: the full-size level vs. the level the rasterizer would choose for 80 fragments across the texture.
+		int[] texels = new int[1024 * 1024];
+		Random random = new Random(0);
+		for (int i = 0; i < texels.length; i++)
+		{
+			texels[i] = random.nextInt(0x1000000);
+		}
+		Texture largeTexture = new Texture(texels, 1024, 1024, true);
+		int minifiedLevel = largeTexture.getLevel(1.0f / 80, 1.0f / 80);
+		float[] position = new float[1];
+		for (int level : new int[] { 0, minifiedLevel })
+		{
+			benchmarks.put("Texture.getNdcPixel 1024x1024 level " + level, () ->
+			{
+				// Scattered texture coordinates, like the fragments of a minified texture.
+				position[0] += 1.0f / 80 + 0.0001f;
+				float u = position[0] % 1, v = (position[0] * 0.37f) % 1;
+				return largeTexture.getNdcPixel(u, v, level);
+			});
+		}
+	}
+
+	static void addFramebufferBenchmarks()
+	{
+		for (Vector2i size : RESOLUTIONS)
+		{
+			Framebuffer framebuffer = new Framebuffer(size.X, size.Y, 0x000000);
+			benchmarks.put("Framebuffer.clear " + size.X + "x" + size.Y, () ->
+			{
+				framebuffer.clear();
+				return framebuffer.buffer.length;
+			});
+		}
+	}
+
+	static void addEncoderBenchmarks()
+	{
+		ThreeDee.mesh = Mesh.fromVectors(ThreeDee.vertices, ThreeDee.textureCoordinates, ThreeDee.indices);
+		ThreeDee.bvh = new BoundingVolumeHierarchy(ThreeDee.mesh);
+
+		for (Vector2i size : RESOLUTIONS)
+		{
+			// Encode a frame of the default scene (the cube, as seen at some point of its rotation).
+			Framebuffer framebuffer = new Framebuffer(size.X, size.Y, 0x000000);
+			ThreeDee.framebuffer = framebuffer;
+			ThreeDee.fragmentSink = new TexturedFragmentSink(framebuffer, ThreeDee.defaultTexture);
+			ThreeDee.sceneRasterizer = new SceneRasterizer(framebuffer, ThreeDee.fragmentSink, false, false);
+			ThreeDee.drawScene(30, size, ControlState.INITIAL);
+
+			// The sub-cell modes encode the same pixels in fewer cells.
+			for (ConsoleRenderMode mode : ConsoleRenderMode.values())
+			{
+				ConsoleFrameEncoder encoder = new ConsoleFrameEncoder(size.X / mode.subPixelsX, size.Y / mode.subPixelsY, new NullChannel());
+				if (!encoder.encodeFramebuffer(framebuffer, mode, false))
+				{
+					continue;
+				}
+				encoder.reset();
+
+				benchmarks.put("ConsoleFrameEncoder " + mode + " " + size.X + "x" + size.Y, () ->
+				{
+					encoder.encodeFramebuffer(framebuffer, mode, false);
+					long length = encoder.length;
+					try
+					{
+						encoder.flush();
+					}
+					catch (IOException ex)
+					{
+						throw new UncheckedIOException(ex);
+					}
+					return length;
+				});
+			}
+		}
+	}
+	//#endregion
+}
@@ -2,11 +2,43 @@ import java.util.*;
 import java.io.*;
 import javax.imageio.*;
 import java.awt.image.BufferedImage;
-import java.lang.reflect.Array;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
 import java.net.URL;
+import java.net.URLConnection;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.Base64;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.stream.Collectors;
+import jdk.jfr.Category;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
 
 //#region Primitive types
 class Vector2i
@@ -30,6 +62,18 @@ class Vector2i
 		int y = Y < start.Y ? start.Y : (Y >= end.Y ? end.Y - 1 : Y);
 		return new Vector2i(x, y);
 	}
+
+	@Override
+	public boolean equals(Object other)
+	{
+		return other instanceof Vector2i && ((Vector2i) other).X == X && ((Vector2i) other).Y == Y;
+	}
+
+	@Override
+	public int hashCode()
+	{
+		return X * 31 + Y;
+	}
 }
 
 class Vector2f
@@ -66,6 +110,47 @@ class Vector3i
 	}
 }
 
+/**
+ * Helpers for colors packed as 0xRRGGBB integers.
+ */
+class PackedRgb
+{
+	public static int pack(int r, int g, int b)
+	{
+		return (Math.min(r, 255) << 16) | (Math.min(g, 255) << 8) | Math.min(b, 255);
+	}
+
+	public static int red(int rgb)
+	{
+		return (rgb >> 16) & 0xff;
+	}
+
+	public static int green(int rgb)
+	{
+		return (rgb >> 8) & 0xff;
+	}
+
+	public static int blue(int rgb)
+	{
+		return rgb & 0xff;
+	}
+
+	public static int average(int rgb)
+	{
+		return (red(rgb) + green(rgb) + blue(rgb)) / 3;
+	}
+
+	public static int multiply(int r, int g, int b, float scalar)
+	{
+		return pack((int) (r * scalar), (int) (g * scalar), (int) (b * scalar));
+	}
+
+	public static int multiply(int rgb, float scalar)
+	{
+		return multiply(red(rgb), green(rgb), blue(rgb), scalar);
+	}
+}
+
 class Vector3f
 {
 	public float X, Y, Z;
@@ -295,6 +380,16 @@ class Matrix4x4f
 	}
 
 	public Matrix4x4f multiply(Matrix4x4f right)
+	{
+		Matrix4x4f result = new Matrix4x4f(0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0);
+		multiply(right, result);
+		return result;
+	}
+
+	/**
+	 * Same as above, but the product is stored in `result` (which can be `this` or `right`) instead of a new matrix.
+	 */
+	public void multiply(Matrix4x4f right, Matrix4x4f result)
 	{
 		// A1x*Bx1 -> A11*B11 + A12*B21 ...
 		float r11 = (A11 * right.A11) + (A12 * right.A21) + (A13 * right.A31) + (A14 * right.A41);
@@ -323,89 +418,540 @@ class Matrix4x4f
 		float r43 = (A41 * right.A13) + (A42 * right.A23) + (A43 * right.A33) + (A44 * right.A43);
 		float r44 = (A41 * right.A14) + (A42 * right.A24) + (A43 * right.A34) + (A44 * right.A44);
 
-		return new Matrix4x4f(r11, r12, r13, r14, r21, r22, r23, r24, r31, r32, r33, r34, r41, r42, r43, r44);
+		result.A11 = r11;
+		result.A12 = r12;
+		result.A13 = r13;
+		result.A14 = r14;
+
+		result.A21 = r21;
+		result.A22 = r22;
+		result.A23 = r23;
+		result.A24 = r24;
+
+		result.A31 = r31;
+		result.A32 = r32;
+		result.A33 = r33;
+		result.A34 = r34;
+
+		result.A41 = r41;
+		result.A42 = r42;
+		result.A43 = r43;
+		result.A44 = r44;
 	}
 }
 //#endregion
 
 //#region Drawing types
+/**
+ * Texture stored as packed 0xRRGGBB texels, row by row.
+ * 
+ * Optionally, it also stores mipmaps: every level is half the size of the previous one (a 2×2 box filter), down to 1×1.
+ * Sampling a smaller level when the texture is minified reads far fewer (and closer) texels.
+ */
 class Texture
 {
 	int width, height;
-	Vector3i[][] pixels;
+
+	// Texels of each level (level 0 is the full-size texture).
+	int[][] levels;
+	int[] levelWidths, levelHeights;
+	// Masks to wrap the coordinates of each level, or -1 if that dimension is not a power of two.
+	int[] widthMasks, heightMasks;
 
 	public Texture(Vector3i[] rawRgbData, int width)
+	{
+		this(packRgb(rawRgbData), width, rawRgbData.length / width, true);
+	}
+
+	public Texture(String path) throws IOException
+	{
+		this(path, true);
+	}
+
+	public Texture(String path, boolean mipmaps) throws IOException
+	{
+		this(readImage(path), mipmaps);
+	}
+
+	Texture(BufferedImage image, boolean mipmaps)
+	{
+		// `getRGB` returns 0xAARRGGBB texels, row by row. The alpha channel is ignored.
+		this(image.getRGB(0, 0, image.getWidth(), image.getHeight(), null, 0, image.getWidth()), image.getWidth(), image.getHeight(), mipmaps);
+	}
+
+	public Texture(int[] texels, int width, int height, boolean mipmaps)
 	{
 		this.width = width;
-		height = rawRgbData.length / this.width;
-		pixels = new Vector3i[this.width][height];
+		this.height = height;
+
+		int levelCount = 1;
+		if (mipmaps)
+		{
+			while ((width >> (levelCount - 1)) > 1 || (height >> (levelCount - 1)) > 1)
+			{
+				levelCount++;
+			}
+		}
+
+		levels = new int[levelCount][];
+		levelWidths = new int[levelCount];
+		levelHeights = new int[levelCount];
+		widthMasks = new int[levelCount];
+		heightMasks = new int[levelCount];
+
+		levels[0] = new int[width * height];
+		for (int i = 0; i < levels[0].length; i++)
+		{
+			levels[0][i] = texels[i] & 0xffffff;
+		}
+		setLevelSize(0, width, height);
 
-		for (int i = 0; i < rawRgbData.length; i++)
+		for (int level = 1; level < levelCount; level++)
 		{
-			int x = i % width, y = i / width;
-			pixels[x][y] = rawRgbData[i];
+			buildLevel(level);
 		}
 	}
 
-	public Texture(String path) throws IOException
+	/**
+	 * Creates a texture from already built levels (e.g. from `TextureCache`).
+	 */
+	public Texture(int[][] levels, int[] levelWidths, int[] levelHeights)
+	{
+		width = levelWidths[0];
+		height = levelHeights[0];
+		this.levels = levels;
+		this.levelWidths = new int[levels.length];
+		this.levelHeights = new int[levels.length];
+		widthMasks = new int[levels.length];
+		heightMasks = new int[levels.length];
+		for (int level = 0; level < levels.length; level++)
+		{
+			setLevelSize(level, levelWidths[level], levelHeights[level]);
+		}
+	}
+
+	static int[] packRgb(Vector3i[] rawRgbData)
+	{
+		int[] texels = new int[rawRgbData.length];
+		for (int i = 0; i < texels.length; i++)
+		{
+			texels[i] = PackedRgb.pack(rawRgbData[i].X, rawRgbData[i].Y, rawRgbData[i].Z);
+		}
+		return texels;
+	}
+
+	static BufferedImage readImage(String path) throws IOException
 	{
-		BufferedImage buffer;
 		if (path.contains(":")) // It's a URL.
 		{
 			URL url = new URL(path);
-			InputStream iStr = url.openStream();
-			buffer = ImageIO.read(iStr);
+			try (InputStream iStr = url.openStream())
+			{
+				return ImageIO.read(iStr);
+			}
 		}
 		else // TODO: Is it necessary to make this distinction?
 		{
-			buffer = ImageIO.read(new File(path));
+			return ImageIO.read(new File(path));
+		}
+	}
+
+	void setLevelSize(int level, int levelWidth, int levelHeight)
+	{
+		levelWidths[level] = levelWidth;
+		levelHeights[level] = levelHeight;
+		widthMasks[level] = Integer.bitCount(levelWidth) == 1 ? levelWidth - 1 : -1;
+		heightMasks[level] = Integer.bitCount(levelHeight) == 1 ? levelHeight - 1 : -1;
+	}
+
+	/**
+	 * Averages every 2×2 block of texels of the previous level.
+	 */
+	void buildLevel(int level)
+	{
+		int[] source = levels[level - 1];
+		int sourceWidth = levelWidths[level - 1], sourceHeight = levelHeights[level - 1];
+		int levelWidth = Math.max(1, sourceWidth / 2), levelHeight = Math.max(1, sourceHeight / 2);
+
+		int[] texels = new int[levelWidth * levelHeight];
+		for (int y = 0; y < levelHeight; y++)
+		{
+			int y0 = Math.min(y * 2, sourceHeight - 1) * sourceWidth;
+			int y1 = Math.min(y * 2 + 1, sourceHeight - 1) * sourceWidth;
+			for (int x = 0; x < levelWidth; x++)
+			{
+				int x0 = Math.min(x * 2, sourceWidth - 1);
+				int x1 = Math.min(x * 2 + 1, sourceWidth - 1);
+				int p00 = source[y0 + x0], p01 = source[y0 + x1], p10 = source[y1 + x0], p11 = source[y1 + x1];
+				texels[x + y * levelWidth] = PackedRgb.pack(
+					(PackedRgb.red(p00) + PackedRgb.red(p01) + PackedRgb.red(p10) + PackedRgb.red(p11)) / 4,
+					(PackedRgb.green(p00) + PackedRgb.green(p01) + PackedRgb.green(p10) + PackedRgb.green(p11)) / 4,
+					(PackedRgb.blue(p00) + PackedRgb.blue(p01) + PackedRgb.blue(p10) + PackedRgb.blue(p11)) / 4);
+			}
+		}
+
+		levels[level] = texels;
+		setLevelSize(level, levelWidth, levelHeight);
+	}
+
+	public int getLevelCount()
+	{
+		return levels.length;
+	}
+
+	/**
+	 * Chooses the mipmap level for a fragment.
+	 * @param uFootprint How much U changes between adjacent fragments (the largest of the X and Y screen-space derivatives).
+	 * @param vFootprint The same, for V.
+	 */
+	public int getLevel(float uFootprint, float vFootprint)
+	{
+		// The level is log2 of the number of texels covered by a fragment (`getExponent` is the floor of log2).
+		float texelFootprint = Math.max(uFootprint * width, vFootprint * height);
+		int level = Math.getExponent(texelFootprint);
+		return Math.max(0, Math.min(level, levels.length - 1));
+	}
+
+	public int getNdcPixel(Vector2f xy)
+	{
+		return getNdcPixel(xy.X, xy.Y);
+	}
+
+	public int getNdcPixel(float u, float v)
+	{
+		return getNdcPixel(u, v, 0);
+	}
+
+	public int getNdcPixel(float u, float v, int level)
+	{
+		return getPixel((int) (u * levelWidths[level]), (int) (v * levelHeights[level]), level);
+	}
+
+	public int getPixel(int x, int y)
+	{
+		return getPixel(x, y, 0);
+	}
+
+	public int getPixel(int x, int y, int level)
+	{
+		int widthMask = widthMasks[level], heightMask = heightMasks[level];
+		x = widthMask >= 0 ? x & widthMask : Math.floorMod(x, levelWidths[level]);
+		y = heightMask >= 0 ? y & heightMask : Math.floorMod(y, levelHeights[level]);
+		return levels[level][x + y * levelWidths[level]];
+	}
+}
+
+/**
+ * Local cache of decoded textures, so images don't have to be downloaded and decoded on every run.
+ * 
+ * Entries are named after a hash of the source (path or URL), its version (modification time and size, or the ETag of HTTP sources) and whether the texture has mipmaps.
+ * Each entry holds the texels of every level in a raw format that is memory-mapped and copied in bulk when loaded.
+ * When the cache grows larger than its limit, the least recently used entries (by file modification time, updated on every hit) are deleted.
+ */
+class TextureCache
+{
+	static final int MAGIC = 0x31435854; // "TXC1" (little endian).
+
+	Path directory;
+	long maxBytes;
+
+	// Whether the last `load` was served from the cache.
+	boolean lastLoadWasHit = false;
+
+	public TextureCache(Path directory, long maxBytes)
+	{
+		this.directory = directory;
+		this.maxBytes = maxBytes;
+	}
+
+	/**
+	 * @return `$XDG_CACHE_HOME/console-3d-renderer/textures`, `%LOCALAPPDATA%\console-3d-renderer\textures` on Windows, or `~/.cache/console-3d-renderer/textures`.
+	 */
+	public static Path getDefaultDirectory()
+	{
+		String base = System.getenv(ThreeDee.IsWindows ? "LOCALAPPDATA" : "XDG_CACHE_HOME");
+		Path root = base != null && !base.isEmpty() ? Paths.get(base) : Paths.get(System.getProperty("user.home"), ".cache");
+		return root.resolve("console-3d-renderer").resolve("textures");
+	}
+
+	public Texture load(String path, boolean mipmaps) throws IOException
+	{
+		lastLoadWasHit = false;
+		String version = getVersion(path);
+		if (version == null) // Without a version, a changed source could not be told apart from a cached one.
+		{
+			return new Texture(path, mipmaps);
+		}
+
+		Path entry = directory.resolve(getKey(path + "\n" + version + "\n" + mipmaps) + ".tex");
+		if (Files.isRegularFile(entry))
+		{
+			try
+			{
+				Texture texture = read(entry);
+				Files.setLastModifiedTime(entry, FileTime.fromMillis(System.currentTimeMillis()));
+				lastLoadWasHit = true;
+				return texture;
+			}
+			catch (IOException ex)
+			{
+				// A corrupted or truncated entry is replaced below.
+				Files.deleteIfExists(entry);
+			}
+		}
+
+		Texture texture = new Texture(path, mipmaps);
+		try
+		{
+			Files.createDirectories(directory);
+			write(entry, texture);
+			evict();
+		}
+		catch (IOException ex)
+		{
+			System.err.println("Cannot write texture cache entry: " + ex.getMessage());
+		}
+		return texture;
+	}
+
+	/**
+	 * @return A string that changes whenever the source changes, or `null` if it cannot be known.
+	 */
+	static String getVersion(String path) throws IOException
+	{
+		if (!path.contains(":")) // Local file.
+		{
+			File file = new File(path);
+			return file.getCanonicalPath() + "@" + file.lastModified() + "/" + file.length();
+		}
+
+		URLConnection connection = new URL(path).openConnection();
+		if (connection instanceof HttpURLConnection)
+		{
+			HttpURLConnection http = (HttpURLConnection) connection;
+			http.setRequestMethod("HEAD");
+			try
+			{
+				String etag = http.getHeaderField("ETag");
+				if (etag != null)
+				{
+					return etag;
+				}
+				long lastModified = http.getLastModified();
+				return lastModified != 0 ? lastModified + "/" + http.getContentLengthLong() : null;
+			}
+			finally
+			{
+				http.disconnect();
+			}
+		}
+
+		// Other URLs (like `file:` URLs) usually know the modification time of the resource.
+		long lastModified = connection.getLastModified();
+		long length = connection.getContentLengthLong();
+		if (connection.getDoInput())
+		{
+			connection.getInputStream().close();
+		}
+		return lastModified != 0 ? lastModified + "/" + length : null;
+	}
+
+	static String getKey(String source)
+	{
+		try
+		{
+			byte[] hash = MessageDigest.getInstance("SHA-256").digest(source.getBytes(StandardCharsets.UTF_8));
+			StringBuilder key = new StringBuilder();
+			for (int i = 0; i < 16; i++)
+			{
+				key.append(String.format("%02x", hash[i]));
+			}
+			return key.toString();
+		}
+		catch (NoSuchAlgorithmException ex) // Every Java platform supports SHA-256.
+		{
+			throw new IllegalStateException(ex);
+		}
+	}
+
+	// Layout (little endian ints): magic, level count, the width and height of every level, and then the texels of every level.
+	static Texture read(Path entry) throws IOException
+	{
+		try (FileChannel channel = FileChannel.open(entry, StandardOpenOption.READ))
+		{
+			ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()).order(ByteOrder.LITTLE_ENDIAN);
+			try
+			{
+				if (buffer.getInt() != MAGIC)
+				{
+					throw new IOException("Not a texture cache entry: " + entry);
+				}
+				int levelCount = buffer.getInt();
+				int[] levelWidths = new int[levelCount], levelHeights = new int[levelCount];
+				for (int level = 0; level < levelCount; level++)
+				{
+					levelWidths[level] = buffer.getInt();
+					levelHeights[level] = buffer.getInt();
+				}
+
+				int[][] levels = new int[levelCount][];
+				for (int level = 0; level < levelCount; level++)
+				{
+					levels[level] = new int[levelWidths[level] * levelHeights[level]];
+					buffer.asIntBuffer().get(levels[level]);
+					buffer.position(buffer.position() + levels[level].length * 4);
+				}
+				return new Texture(levels, levelWidths, levelHeights);
+			}
+			catch (RuntimeException ex) // Buffer underflows, negative sizes...
+			{
+				throw new IOException("Corrupted texture cache entry: " + entry, ex);
+			}
+		}
+	}
+
+	static void write(Path entry, Texture texture) throws IOException
+	{
+		// Write to a temporary file first, so other instances never see half-written entries.
+		Path temporary = Files.createTempFile(entry.getParent(), "texture", ".tmp");
+		try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.WRITE))
+		{
+			ByteBuffer buffer = ByteBuffer.allocate(1 << 20).order(ByteOrder.LITTLE_ENDIAN);
+			buffer.putInt(MAGIC);
+			buffer.putInt(texture.getLevelCount());
+			for (int level = 0; level < texture.getLevelCount(); level++)
+			{
+				buffer.putInt(texture.levelWidths[level]);
+				buffer.putInt(texture.levelHeights[level]);
+			}
+			for (int[] level : texture.levels)
+			{
+				for (int i = 0; i < level.length; i++)
+				{
+					if (buffer.remaining() < 4)
+					{
+						writeFully(channel, buffer);
+					}
+					buffer.putInt(level[i]);
+				}
+			}
+			writeFully(channel, buffer);
+		}
+		Files.move(temporary, entry, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException
+	{
+		buffer.flip();
+		while (buffer.hasRemaining())
+		{
+			channel.write(buffer);
+		}
+		buffer.clear();
+	}
+
+	/**
+	 * Deletes the least recently used entries until the cache fits in `maxBytes`.
+	 */
+	void evict() throws IOException
+	{
+		List<Path> entries = getEntries();
+		long total = 0;
+		for (Path entry : entries)
+		{
+			total += Files.size(entry);
 		}
-		width = buffer.getWidth();
-		height = buffer.getHeight();
 
-		// Get all pixels and pre-process them in a Vector3i array.
-		pixels = new Vector3i[width][height];
-		for (int i = 0; i < width * height; i++)
+		entries.sort(Comparator.comparing(entry ->
+		{
+			try
+			{
+				return Files.getLastModifiedTime(entry);
+			}
+			catch (IOException ex)
+			{
+				return FileTime.fromMillis(0);
+			}
+		}));
+		for (int i = 0; i < entries.size() && total > maxBytes; i++)
 		{
-			int x = i % width, y = i / width;
-			int p = buffer.getRGB(x % width, y % height);
-			//int a = (p >> 24) & 0xff;
-			int r = (p >> 16) & 0xff;
-			int g = (p >> 8) & 0xff;
-			int b = p & 0xff;
-			pixels[x][y] = new Vector3i(r, g, b);
+			total -= Files.size(entries.get(i));
+			Files.deleteIfExists(entries.get(i));
 		}
 	}
 
-	public Vector3i getNdcPixel(Vector2f xy)
+	public void clear() throws IOException
 	{
-		return getPixel((int) (xy.X * width), (int) (xy.Y * height));
+		for (Path entry : getEntries())
+		{
+			Files.deleteIfExists(entry);
+		}
 	}
 
-	public Vector3i getPixel(int x, int y)
+	List<Path> getEntries() throws IOException
 	{
-		return pixels[x % width][y % height];
+		if (!Files.isDirectory(directory))
+		{
+			return new ArrayList<Path>();
+		}
+		try (var stream = Files.list(directory))
+		{
+			return stream.filter(entry -> entry.toString().endsWith(".tex")).collect(Collectors.toList());
+		}
 	}
 }
 
-class Framebuffer<T>
+/**
+ * A framebuffer that stores colors as packed 0xRRGGBB integers, next to a Z buffer.
+ */
+class Framebuffer
 {
-	T[] buffer;
+	int[] buffer;
 	Vector2i bufferSize;
-	T defaultValue;
+	int pixelCount; // The arrays may be larger than this after shrinking the framebuffer.
+	int defaultValue;
 
 	float[] zBuffer;
 	float farPlane = 100.0f;
 
-	public Framebuffer(int width, int height, T defaultVal)
+	// Coarse depth buffer: the farthest depth of every block of 8×8 pixels, so a triangle can be rejected for a whole block without rasterizing it.
+	// It's updated lazily: only after enough fragments were written in a block since the last update (see `getCoarseDepth`).
+	static final int COARSE_BLOCK_SHIFT = 3;
+	static final int COARSE_BLOCK_SIZE = 1 << COARSE_BLOCK_SHIFT;
+	int coarseColumns, coarseRows;
+	float[] coarseDepth;
+	int[] coarseWrites;
+
+	public Framebuffer(int width, int height, int defaultVal)
 	{
-		@SuppressWarnings("unchecked")
-		final T[] a = (T[]) Array.newInstance(defaultVal.getClass(), width * height);
-		buffer = a;
-		
-		zBuffer = new float[width * height];
-		bufferSize = new Vector2i(width, height);
+		buffer = new int[0];
+		zBuffer = new float[0];
+		coarseDepth = new float[0];
+		coarseWrites = new int[0];
 		defaultValue = defaultVal;
+		resize(width, height);
+	}
+
+	/**
+	 * Changes the size of the framebuffer (and clears it). The arrays are only reallocated when they are too small.
+	 */
+	public void resize(int width, int height)
+	{
+		bufferSize = new Vector2i(width, height);
+		pixelCount = width * height;
+		if (buffer.length < pixelCount)
+		{
+			buffer = new int[pixelCount];
+			zBuffer = new float[pixelCount];
+		}
+
+		coarseColumns = (width + COARSE_BLOCK_SIZE - 1) >> COARSE_BLOCK_SHIFT;
+		coarseRows = (height + COARSE_BLOCK_SIZE - 1) >> COARSE_BLOCK_SHIFT;
+		if (coarseDepth.length < coarseColumns * coarseRows)
+		{
+			coarseDepth = new float[coarseColumns * coarseRows];
+			coarseWrites = new int[coarseColumns * coarseRows];
+		}
 		clear();
 	}
 
@@ -414,29 +960,28 @@ class Framebuffer<T>
 		fill(defaultValue);
 	}
 
-	public void fill(T value)
+	public void fill(int value)
 	{
-		for (int i = 0; i < buffer.length; i++)
-		{
-			buffer[i] = value;
-			zBuffer[i] = farPlane;
-		}
+		Arrays.fill(buffer, 0, pixelCount, value);
+		Arrays.fill(zBuffer, 0, pixelCount, farPlane);
+		Arrays.fill(coarseDepth, 0, coarseColumns * coarseRows, farPlane);
+		Arrays.fill(coarseWrites, 0, coarseColumns * coarseRows, 0);
 	}
 
-	public T get(int index)
+	public int get(int index)
 	{
-		return (index > 0 && index < buffer.length) ? buffer[index] : defaultValue;
+		return (index > 0 && index < pixelCount) ? buffer[index] : defaultValue;
 	}
 	
-	public void safeSet(int index, T value)
+	public void safeSet(int index, int value)
 	{
-		if (index > 0 && index < buffer.length)
+		if (index > 0 && index < pixelCount)
 		{
 			buffer[index] = value;
 		}
 	}
 
-	public void safeSet(Vector2i coord, T value)
+	public void safeSet(Vector2i coord, int value)
 	{
 		if (coord.X >= 0 && coord.X < bufferSize.X &&
 			coord.Y >= 0 && coord.Y < bufferSize.Y)
@@ -445,7 +990,7 @@ class Framebuffer<T>
 		}
 	}
 
-	public void safeSet(Vector3f coord, T value)
+	public void safeSet(Vector3f coord, int value)
 	{
 		if (coord.X >= 0 && coord.X < bufferSize.X &&
 			coord.Y >= 0 && coord.Y < bufferSize.Y &&
@@ -460,12 +1005,59 @@ class Framebuffer<T>
 		}
 	}
 	
-	public void safeNdcPixelSet(Vector3f ndc, T value)
+	/**
+	 * @return `true` if a fragment at these coordinates would be visible (inside the framebuffer, between the planes and nearer than the last fragment).
+	 */
+	public boolean depthTest(int x, int y, float z)
+	{
+		return x >= 0 && x < bufferSize.X &&
+			y >= 0 && y < bufferSize.Y &&
+			z > 0.1f && z < farPlane &&
+			z < zBuffer[x + (y * bufferSize.X)];
+	}
+
+	/**
+	 * Writes a fragment without any test. Use `depthTest` first.
+	 */
+	public void set(int x, int y, float z, int value)
+	{
+		int address = x + (y * bufferSize.X);
+		buffer[address] = value;
+		zBuffer[address] = z;
+		coarseWrites[(x >> COARSE_BLOCK_SHIFT) + ((y >> COARSE_BLOCK_SHIFT) * coarseColumns)]++;
+	}
+
+	/**
+	 * @return The farthest depth of the block at (`blockX`, `blockY`): fragments that aren't nearer than this would fail the depth test everywhere in the block.
+	 * The value may be farther than the actual one (but never nearer), since it's only updated after as many fragments as pixels in a block were written in it.
+	 */
+	public float getCoarseDepth(int blockX, int blockY)
+	{
+		int block = blockX + (blockY * coarseColumns);
+		if (coarseWrites[block] >= COARSE_BLOCK_SIZE * COARSE_BLOCK_SIZE)
+		{
+			int minX = blockX << COARSE_BLOCK_SHIFT, minY = blockY << COARSE_BLOCK_SHIFT;
+			int maxX = Math.min(minX + COARSE_BLOCK_SIZE, bufferSize.X), maxY = Math.min(minY + COARSE_BLOCK_SIZE, bufferSize.Y);
+			float depth = 0;
+			for (int y = minY; y < maxY; y++)
+			{
+				for (int i = minX + (y * bufferSize.X); i < maxX + (y * bufferSize.X); i++)
+				{
+					depth = Math.max(depth, zBuffer[i]);
+				}
+			}
+			coarseDepth[block] = depth;
+			coarseWrites[block] = 0;
+		}
+		return coarseDepth[block];
+	}
+	
+	public void safeNdcPixelSet(Vector3f ndc, int value)
 	{
 		safeNdcPixelSet(ndc.X, ndc.Y, ndc.Z, value);
 	}
 
-	public void safeNdcPixelSet(float x, float y, float z, T value)
+	public void safeNdcPixelSet(float x, float y, float z, int value)
 	{
 		Vector3f fbc = ThreeDee.ndcToFbSize(x, y, z, bufferSize.X, bufferSize.Y);
 		if (fbc.Z > 0.1f && fbc.Z < farPlane) // TODO: Take near plane into account too.
@@ -475,126 +1067,4239 @@ class Framebuffer<T>
 	}
 }
 
-class BasicShaders
+/**
+ * Triangle mesh stored as primitive arrays (one entry per vertex in `x`, `y`, `z`, `u` and `v`, three entries per triangle in `indices`).
+ */
+class Mesh
 {
-	static Vector3f[] line(Vector3f a, Vector3f b)
-	{
-		float xLen = Math.abs(Math.abs(a.X) + Math.abs(b.X));
-		float yLen = Math.abs(Math.abs(a.Y) + Math.abs(b.Y));
-		//float zLen = Math.abs(Math.abs(a.Z) + Math.abs(b.Z)); // TODO: Take Z into account.
+	float[] x, y, z;
+	float[] u, v;
+	int[] indices;
+	int[] neighbors = null; // See `getNeighbors`.
 
-		int steps = (int) Math.min(Math.max(xLen, yLen), 1024);
-		List<Vector3f> list = new ArrayList<Vector3f>();
+	public Mesh(float[] x, float[] y, float[] z, float[] u, float[] v, int[] indices)
+	{
+		this.x = x;
+		this.y = y;
+		this.z = z;
+		this.u = u;
+		this.v = v;
+		this.indices = indices;
+	}
 
-		for (int i = 0; i < steps; i++)
+	public static Mesh fromVectors(Vector3f[] vertices, Vector2f[] textureCoordinates, int[] indices)
+	{
+		int n = vertices.length;
+		float[] x = new float[n], y = new float[n], z = new float[n], u = new float[n], v = new float[n];
+		for (int i = 0; i < n; i++)
 		{
-			float interpFactor = i / (float) steps;
-			float z = a.Z * (1.0f - interpFactor) + b.Z * interpFactor;
-			if (z < 0.0f)
-			{
-				continue;
-			}
-			float x = a.X * (1.0f - interpFactor) + b.X * interpFactor;
-			float y = a.Y * (1.0f - interpFactor) + b.Y * interpFactor;
-			list.add(new Vector3f(x, y, z));
+			x[i] = vertices[i].X;
+			y[i] = vertices[i].Y;
+			z[i] = vertices[i].Z;
+			u[i] = textureCoordinates[i].X;
+			v[i] = textureCoordinates[i].Y;
 		}
+		return new Mesh(x, y, z, u, v, indices.clone());
+	}
+
+	public int getVertexCount()
+	{
+		return x.length;
+	}
+
+	public int getTriangleCount()
+	{
+		return indices.length / 3;
+	}
+
+	/**
+	 * Finds the triangle on the other side of every edge (edge `i` of a triangle goes from its vertex `i` to its vertex `i + 1`).
+	 * Vertices are matched by position, since vertices in the same place may still have different texture coordinates.
+	 * It's computed on first use, so the triangles must not be reordered after that (see `BoundingVolumeHierarchy`).
+	 * @return For every edge of every triangle (3 per triangle), the index of the other triangle, or -1 if there's none (or if more than two triangles share it).
+	 */
+	public int[] getNeighbors()
+	{
+		if (neighbors != null)
+		{
+			return neighbors;
+		}
+
+		int[] positions = getPositionIndices();
+
+		// Bucket the edges by their lowest vertex (a counting sort), so the other side of an edge is in the same (short) bucket.
+		int edgeCount = indices.length;
+		int[] bucketStart = new int[getVertexCount() + 1];
+		for (int edge = 0; edge < edgeCount; edge++)
+		{
+			bucketStart[getLowestEdgeVertex(positions, edge) + 1]++;
+		}
+		for (int vertex = 0; vertex < getVertexCount(); vertex++)
+		{
+			bucketStart[vertex + 1] += bucketStart[vertex];
+		}
+		int[] bucketEdges = new int[edgeCount];
+		int[] bucketEnd = Arrays.copyOf(bucketStart, bucketStart.length);
+		for (int edge = 0; edge < edgeCount; edge++)
+		{
+			bucketEdges[bucketEnd[getLowestEdgeVertex(positions, edge)]++] = edge;
+		}
+
+		neighbors = new int[edgeCount];
+		Arrays.fill(neighbors, -1);
+		for (int vertex = 0; vertex < getVertexCount(); vertex++)
+		{
+			for (int i = bucketStart[vertex]; i < bucketStart[vertex + 1]; i++)
+			{
+				int edge = bucketEdges[i];
+				int other = getHighestEdgeVertex(positions, edge);
+				int matches = 0, match = -1;
+				for (int j = bucketStart[vertex]; j < bucketStart[vertex + 1]; j++)
+				{
+					int candidate = bucketEdges[j];
+					if (candidate / 3 != edge / 3 && getHighestEdgeVertex(positions, candidate) == other)
+					{
+						matches++;
+						match = candidate;
+					}
+				}
+				if (matches == 1)
+				{
+					neighbors[edge] = match / 3;
+				}
+			}
+		}
+		return neighbors;
+	}
+
+	int getLowestEdgeVertex(int[] positions, int edge)
+	{
+		int next = edge % 3 == 2 ? edge - 2 : edge + 1;
+		return Math.min(positions[indices[edge]], positions[indices[next]]);
+	}
+
+	int getHighestEdgeVertex(int[] positions, int edge)
+	{
+		int next = edge % 3 == 2 ? edge - 2 : edge + 1;
+		return Math.max(positions[indices[edge]], positions[indices[next]]);
+	}
+
+	/**
+	 * @return For every vertex, the first vertex at the same position (found with an open addressing hash table).
+	 */
+	int[] getPositionIndices()
+	{
+		int n = getVertexCount();
+		int[] positions = new int[n];
+		int[] table = new int[Integer.highestOneBit(Math.max(n, 1)) * 4];
+		Arrays.fill(table, -1);
+		int mask = table.length - 1;
+		for (int vertex = 0; vertex < n; vertex++)
+		{
+			int hash = ((Float.floatToIntBits(x[vertex]) * 31) + Float.floatToIntBits(y[vertex])) * 31 + Float.floatToIntBits(z[vertex]);
+			int slot = (hash ^ (hash >>> 16)) & mask;
+			while (table[slot] >= 0 && (x[table[slot]] != x[vertex] || y[table[slot]] != y[vertex] || z[table[slot]] != z[vertex]))
+			{
+				slot = (slot + 1) & mask;
+			}
+			if (table[slot] < 0)
+			{
+				table[slot] = vertex;
+			}
+			positions[vertex] = table[slot];
+		}
+		return positions;
+	}
+
+	/**
+	 * Centers the mesh at the origin and scales it so that its largest dimension is 1 (the size of the default cube).
+	 */
+	public void normalize()
+	{
+		if (x.length == 0)
+		{
+			return;
+		}
+
+		float minX = Float.MAX_VALUE, minY = Float.MAX_VALUE, minZ = Float.MAX_VALUE;
+		float maxX = -Float.MAX_VALUE, maxY = -Float.MAX_VALUE, maxZ = -Float.MAX_VALUE;
+		for (int i = 0; i < x.length; i++)
+		{
+			minX = Math.min(minX, x[i]);
+			minY = Math.min(minY, y[i]);
+			minZ = Math.min(minZ, z[i]);
+			maxX = Math.max(maxX, x[i]);
+			maxY = Math.max(maxY, y[i]);
+			maxZ = Math.max(maxZ, z[i]);
+		}
+
+		float extent = Math.max(Math.max(maxX - minX, maxY - minY), maxZ - minZ);
+		float scale = extent > 0 ? 1.0f / extent : 1.0f;
+		float cx = (minX + maxX) / 2, cy = (minY + maxY) / 2, cz = (minZ + maxZ) / 2;
+		for (int i = 0; i < x.length; i++)
+		{
+			x[i] = (x[i] - cx) * scale;
+			y[i] = (y[i] - cy) * scale;
+			z[i] = (z[i] - cz) * scale;
+		}
+	}
+}
+
+/**
+ * Copies (instances) of a mesh, each one with its own position, rotation and scale, stored as a structure of arrays.
+ *
+ * The rotation and the scale of each instance are stored combined, as the 3×3 matrix they form (9 floats per instance, row by row).
+ * Positions and scales are also kept on their own, since culling only needs them (see `TriangleCuller.cullInstances`).
+ */
+class InstanceBuffer
+{
+	static final int MATRIX_SIZE = 9;
+
+	float[] x = new float[16], y = new float[16], z = new float[16];
+	float[] scales = new float[16];
+	float[] matrices = new float[MATRIX_SIZE * 16];
+	int count = 0;
+
+	/**
+	 * A single instance with the identity matrix (the mesh as it is).
+	 */
+	public static InstanceBuffer single()
+	{
+		InstanceBuffer instances = new InstanceBuffer();
+		instances.add(new Vector3f(0, 0, 0), new Vector4f(0, 0, 0, 1), 1);
+		return instances;
+	}
+
+	/**
+	 * `count` instances on a square grid of the XY plane, centered at the origin and `spacing` units apart.
+	 * Every instance gets a different rotation, so they don't all look the same.
+	 */
+	public static InstanceBuffer grid(int count, float spacing)
+	{
+		InstanceBuffer instances = new InstanceBuffer();
+		int side = (int) Math.ceil(Math.sqrt(count));
+		for (int i = 0; i < count; i++)
+		{
+			int column = i % side, row = i / side;
+			Vector3f position = new Vector3f((column - (side - 1) / 2.0f) * spacing, (row - (side - 1) / 2.0f) * spacing, 0);
+			instances.add(position, Vector4f.fromEulerAngles(i * 0.7f, i * 0.3f, i * 1.1f), 1);
+		}
+		return instances;
+	}
+
+	/**
+	 * Adds an instance scaled by `scale`, then rotated by the `rotation` quaternion and then moved to `position`.
+	 * @return The index of the new instance.
+	 */
+	public int add(Vector3f position, Vector4f rotation, float scale)
+	{
+		if (x.length < count + 1)
+		{
+			x = Arrays.copyOf(x, x.length * 2);
+			y = Arrays.copyOf(y, y.length * 2);
+			z = Arrays.copyOf(z, z.length * 2);
+			scales = Arrays.copyOf(scales, scales.length * 2);
+			matrices = Arrays.copyOf(matrices, matrices.length * 2);
+		}
+
+		x[count] = position.X;
+		y[count] = position.Y;
+		z[count] = position.Z;
+		scales[count] = Math.abs(scale);
+
+		Matrix4x4f r = Matrix4x4f.rotation(rotation);
+		int offset = count * MATRIX_SIZE;
+		matrices[offset] = r.A11 * scale;
+		matrices[offset + 1] = r.A12 * scale;
+		matrices[offset + 2] = r.A13 * scale;
+		matrices[offset + 3] = r.A21 * scale;
+		matrices[offset + 4] = r.A22 * scale;
+		matrices[offset + 5] = r.A23 * scale;
+		matrices[offset + 6] = r.A31 * scale;
+		matrices[offset + 7] = r.A32 * scale;
+		matrices[offset + 8] = r.A33 * scale;
+		return count++;
+	}
+
+	/**
+	 * Stores `view × instance × model` in `result`, where `instance` is the model matrix of `instance`.
+	 * @param view The transform shared by every instance (camera and aspect ratio).
+	 * @param model The transform applied to the mesh before placing it (like its animation).
+	 */
+	public void getModelViewMatrix(int instance, Matrix4x4f view, Matrix4x4f model, Matrix4x4f result)
+	{
+		int offset = instance * MATRIX_SIZE;
+		result.A11 = matrices[offset];
+		result.A12 = matrices[offset + 1];
+		result.A13 = matrices[offset + 2];
+		result.A14 = x[instance];
+		result.A21 = matrices[offset + 3];
+		result.A22 = matrices[offset + 4];
+		result.A23 = matrices[offset + 5];
+		result.A24 = y[instance];
+		result.A31 = matrices[offset + 6];
+		result.A32 = matrices[offset + 7];
+		result.A33 = matrices[offset + 8];
+		result.A34 = z[instance];
+		result.A41 = 0;
+		result.A42 = 0;
+		result.A43 = 0;
+		result.A44 = 1;
+
+		result.multiply(model, result);
+		view.multiply(result, result);
+	}
+}
+
+/**
+ * Loads Wavefront OBJ and binary PLY meshes from a memory-mapped file in a single streaming pass.
+ * 
+ * Numbers are parsed straight from the mapped bytes into growable primitive arrays; no line or token is ever turned into a `String` (except for the small PLY header).
+ */
+class MeshLoader
+{
+	static final double[] POWERS_OF_TEN = new double[23];
+
+	static
+	{
+		POWERS_OF_TEN[0] = 1;
+		for (int i = 1; i < POWERS_OF_TEN.length; i++)
+		{
+			POWERS_OF_TEN[i] = POWERS_OF_TEN[i - 1] * 10;
+		}
+	}
+
+	// PLY scalar types.
+	static final int PLY_INT8 = 0, PLY_UINT8 = 1, PLY_INT16 = 2, PLY_UINT16 = 3, PLY_INT32 = 4, PLY_UINT32 = 5, PLY_FLOAT32 = 6, PLY_FLOAT64 = 7;
+
+	ByteBuffer buf;
+	int pos, limit;
+
+	// Output arrays and their used lengths.
+	float[] x = new float[1024], y = new float[1024], z = new float[1024];
+	float[] u = new float[1024], v = new float[1024];
+	int vertexCount = 0, uvCount = 0;
+	int[] cornerVertices = new int[3072], cornerUvs = new int[3072];
+	int cornerCount = 0;
+	int[] polygonVertices = new int[16], polygonUvs = new int[16];
+	int polygonCount = 0;
+
+	MeshLoader(ByteBuffer buffer)
+	{
+		buf = buffer;
+		pos = 0;
+		limit = buffer.limit();
+	}
+
+	public static Mesh load(String path) throws IOException
+	{
+		try (FileChannel channel = FileChannel.open(new File(path).toPath(), StandardOpenOption.READ))
+		{
+			long size = channel.size();
+			if (size > Integer.MAX_VALUE)
+			{
+				throw new IOException("Model files larger than 2 GiB are not supported.");
+			}
+
+			MeshLoader loader = new MeshLoader(channel.map(FileChannel.MapMode.READ_ONLY, 0, size));
+			Mesh mesh = loader.startsWith("ply") ? loader.loadPly() : loader.loadObj();
+			mesh.normalize();
+			return mesh;
+		}
+	}
+
+	boolean startsWith(String magic)
+	{
+		if (limit < magic.length())
+		{
+			return false;
+		}
+		for (int i = 0; i < magic.length(); i++)
+		{
+			if (buf.get(i) != magic.charAt(i))
+			{
+				return false;
+			}
+		}
+		return true;
+	}
+
+
+	static boolean isBlank(byte c)
+	{
+		return c == ' ' || c == '\t' || c == '\r';
+	}
+
+	static boolean isDigit(byte c)
+	{
+		return c >= '0' && c <= '9';
+	}
+
+	byte peek(int offset)
+	{
+		return pos + offset < limit ? buf.get(pos + offset) : (byte) '\n';
+	}
+
+	void skipBlanks()
+	{
+		while (pos < limit && isBlank(buf.get(pos)))
+		{
+			pos++;
+		}
+	}
+
+	void skipToken()
+	{
+		while (pos < limit && !isBlank(buf.get(pos)) && buf.get(pos) != '\n' && buf.get(pos) != '#')
+		{
+			pos++;
+		}
+	}
+
+	void skipLine()
+	{
+		while (pos < limit && buf.get(pos) != '\n')
+		{
+			pos++;
+		}
+		pos++;
+	}
+
+	/**
+	 * @return `true` if there's nothing else on this line but blanks and comments.
+	 */
+	boolean isEndOfLine()
+	{
+		skipBlanks();
+		byte c = peek(0);
+		return c == '\n' || c == '#';
+	}
+
+	boolean hasNumber()
+	{
+		skipBlanks();
+		byte c = peek(0);
+		return isDigit(c) || c == '-' || c == '+' || c == '.';
+	}
+
+	int parseInt() throws IOException
+	{
+		skipBlanks();
+		boolean negative = peek(0) == '-';
+		if (negative || peek(0) == '+')
+		{
+			pos++;
+		}
+
+		int start = pos, value = 0;
+		while (pos < limit && isDigit(buf.get(pos)))
+		{
+			value = value * 10 + (buf.get(pos) - '0');
+			pos++;
+		}
+		if (pos == start)
+		{
+			throw new IOException("Malformed integer at byte " + pos + ".");
+		}
+		return negative ? -value : value;
+	}
+
+	float parseFloat() throws IOException
+	{
+		skipBlanks();
+		boolean negative = peek(0) == '-';
+		if (negative || peek(0) == '+')
+		{
+			pos++;
+		}
+
+		// Up to 18 significant digits fit in a `long`; the rest only move the decimal exponent.
+		int start = pos, digits = 0, exponent = 0;
+		long mantissa = 0;
+		while (pos < limit && isDigit(buf.get(pos)))
+		{
+			if (digits < 18)
+			{
+				mantissa = mantissa * 10 + (buf.get(pos) - '0');
+				digits += mantissa > 0 ? 1 : 0;
+			}
+			else
+			{
+				exponent++;
+			}
+			pos++;
+		}
+		if (peek(0) == '.')
+		{
+			pos++;
+			while (pos < limit && isDigit(buf.get(pos)))
+			{
+				if (digits < 18)
+				{
+					mantissa = mantissa * 10 + (buf.get(pos) - '0');
+					digits += mantissa > 0 ? 1 : 0;
+					exponent--;
+				}
+				pos++;
+			}
+		}
+		if (pos == start || (pos == start + 1 && buf.get(start) == '.'))
+		{
+			throw new IOException("Malformed number at byte " + pos + ".");
+		}
+		if (peek(0) == 'e' || peek(0) == 'E')
+		{
+			pos++;
+			exponent += parseInt();
+		}
+
+		double value = mantissa;
+		if (exponent < 0)
+		{
+			value = -exponent < POWERS_OF_TEN.length ? value / POWERS_OF_TEN[-exponent] : value / Math.pow(10, -exponent);
+		}
+		else if (exponent > 0)
+		{
+			value = exponent < POWERS_OF_TEN.length ? value * POWERS_OF_TEN[exponent] : value * Math.pow(10, exponent);
+		}
+		return (float) (negative ? -value : value);
+	}
+
+	Mesh loadObj() throws IOException
+	{
+		while (pos < limit)
+		{
+			skipBlanks();
+			byte c = peek(0);
+
+			if (c == 'v' && isBlank(peek(1))) // Vertex position.
+			{
+				pos++;
+				addPosition(parseFloat(), parseFloat(), parseFloat()); // Anything after Z (the optional W or a comment) is skipped with the rest of the line.
+			}
+			else if (c == 'v' && peek(1) == 't' && isBlank(peek(2))) // Texture coordinates (the second one is optional).
+			{
+				pos += 2;
+				float pu = parseFloat();
+				addUv(pu, hasNumber() ? parseFloat() : 0.0f);
+			}
+			else if (c == 'f' && isBlank(peek(1))) // Face (`v`, `v/vt`, `v//vn` or `v/vt/vn` corners).
+			{
+				pos++;
+				while (!isEndOfLine())
+				{
+					int vertex = getObjIndex(parseInt(), vertexCount);
+					int uv = -1;
+					if (peek(0) == '/' && peek(1) != '/')
+					{
+						pos++;
+						uv = getObjIndex(parseInt(), uvCount);
+					}
+					skipToken(); // Ignore the normal.
+					addPolygonCorner(vertex, uv);
+				}
+				endPolygon();
+			}
+
+			skipLine();
+		}
+
+		return buildMesh(false);
+	}
+
+	static int getObjIndex(int index, int count) throws IOException
+	{
+		if (index == 0)
+		{
+			throw new IOException("OBJ indices cannot be 0.");
+		}
+		// Negative indices are relative to the last element that was read.
+		return index > 0 ? index - 1 : count + index;
+	}
+
+	static class PlyElement
+	{
+		String name;
+		int count;
+		List<String> propertyNames = new ArrayList<String>();
+		List<Integer> propertyTypes = new ArrayList<Integer>();
+		List<Integer> listCountTypes = new ArrayList<Integer>(); // -1 for scalar properties.
+	}
+
+	static int getPlyType(String name) throws IOException
+	{
+		switch (name)
+		{
+			case "char":
+			case "int8":
+				return PLY_INT8;
+			case "uchar":
+			case "uint8":
+				return PLY_UINT8;
+			case "short":
+			case "int16":
+				return PLY_INT16;
+			case "ushort":
+			case "uint16":
+				return PLY_UINT16;
+			case "int":
+			case "int32":
+				return PLY_INT32;
+			case "uint":
+			case "uint32":
+				return PLY_UINT32;
+			case "float":
+			case "float32":
+				return PLY_FLOAT32;
+			case "double":
+			case "float64":
+				return PLY_FLOAT64;
+			default:
+				throw new IOException("Unknown PLY property type: " + name);
+		}
+	}
+
+	double readPlyValue(int type) throws IOException
+	{
+		int size = type == PLY_FLOAT64 ? 8 : (type >= PLY_INT32 ? 4 : (type >= PLY_INT16 ? 2 : 1));
+		if (pos + size > limit)
+		{
+			throw new IOException("Unexpected end of PLY file.");
+		}
+
+		double value;
+		switch (type)
+		{
+			case PLY_INT8:
+				value = buf.get(pos);
+				break;
+			case PLY_UINT8:
+				value = buf.get(pos) & 0xff;
+				break;
+			case PLY_INT16:
+				value = buf.getShort(pos);
+				break;
+			case PLY_UINT16:
+				value = buf.getChar(pos);
+				break;
+			case PLY_INT32:
+				value = buf.getInt(pos);
+				break;
+			case PLY_UINT32:
+				value = buf.getInt(pos) & 0xffffffffL;
+				break;
+			case PLY_FLOAT32:
+				value = buf.getFloat(pos);
+				break;
+			default:
+				value = buf.getDouble(pos);
+				break;
+		}
+		pos += size;
+		return value;
+	}
+
+	Mesh loadPly() throws IOException
+	{
+		// The header is plain text, and small enough to be parsed as strings.
+		StringBuilder header = new StringBuilder();
+		while (true)
+		{
+			if (pos >= limit)
+			{
+				throw new IOException("PLY header is not terminated.");
+			}
+			int lineStart = pos;
+			skipLine();
+			for (int i = lineStart; i < Math.min(pos, limit); i++)
+			{
+				header.append((char) (buf.get(i) & 0xff));
+			}
+			if (header.toString().endsWith("end_header\n") || header.toString().endsWith("end_header\r\n"))
+			{
+				break;
+			}
+		}
+
+		List<PlyElement> elements = new ArrayList<PlyElement>();
+		ByteOrder order = null;
+		for (String line : header.toString().split("\r?\n"))
+		{
+			String[] tokens = line.trim().split("\\s+");
+			switch (tokens[0])
+			{
+				case "format":
+					if (tokens[1].equals("binary_little_endian"))
+					{
+						order = ByteOrder.LITTLE_ENDIAN;
+					}
+					else if (tokens[1].equals("binary_big_endian"))
+					{
+						order = ByteOrder.BIG_ENDIAN;
+					}
+					else
+					{
+						throw new IOException("Only binary PLY files are supported.");
+					}
+					break;
+
+				case "element":
+					PlyElement element = new PlyElement();
+					element.name = tokens[1];
+					element.count = Integer.parseInt(tokens[2]);
+					elements.add(element);
+					break;
+
+				case "property":
+					if (elements.isEmpty())
+					{
+						throw new IOException("PLY property declared before any element.");
+					}
+					PlyElement last = elements.get(elements.size() - 1);
+					boolean isList = tokens[1].equals("list");
+					last.propertyNames.add(tokens[isList ? 4 : 2]);
+					last.propertyTypes.add(getPlyType(tokens[isList ? 3 : 1]));
+					last.listCountTypes.add(isList ? getPlyType(tokens[2]) : -1);
+					break;
+			}
+		}
+		if (order == null)
+		{
+			throw new IOException("PLY format is not specified.");
+		}
+		buf.order(order);
+
+		boolean hasUvs = false;
+		for (PlyElement element : elements)
+		{
+			int propertyCount = element.propertyNames.size();
+			int[] types = new int[propertyCount], listCountTypes = new int[propertyCount];
+			for (int p = 0; p < propertyCount; p++)
+			{
+				types[p] = element.propertyTypes.get(p);
+				listCountTypes[p] = element.listCountTypes.get(p);
+			}
+
+			if (element.name.equals("vertex"))
+			{
+				int px = element.propertyNames.indexOf("x"), py = element.propertyNames.indexOf("y"), pz = element.propertyNames.indexOf("z");
+				int pu = Math.max(element.propertyNames.indexOf("u"), Math.max(element.propertyNames.indexOf("s"), element.propertyNames.indexOf("texture_u")));
+				int pv = Math.max(element.propertyNames.indexOf("v"), Math.max(element.propertyNames.indexOf("t"), element.propertyNames.indexOf("texture_v")));
+				if (px < 0 || py < 0 || pz < 0)
+				{
+					throw new IOException("PLY vertices must have x, y and z properties.");
+				}
+				hasUvs = pu >= 0 && pv >= 0;
+
+				double[] values = new double[propertyCount];
+				for (int i = 0; i < element.count; i++)
+				{
+					for (int p = 0; p < propertyCount; p++)
+					{
+						if (listCountTypes[p] >= 0)
+						{
+							skipPlyList(listCountTypes[p], types[p]);
+						}
+						else
+						{
+							values[p] = readPlyValue(types[p]);
+						}
+					}
+					addPosition((float) values[px], (float) values[py], (float) values[pz]);
+					if (hasUvs)
+					{
+						addUv((float) values[pu], (float) values[pv]);
+					}
+				}
+			}
+			else if (element.name.equals("face"))
+			{
+				int faceProperty = Math.max(element.propertyNames.indexOf("vertex_indices"), element.propertyNames.indexOf("vertex_index"));
+				for (int i = 0; i < element.count; i++)
+				{
+					for (int p = 0; p < propertyCount; p++)
+					{
+						if (p == faceProperty && listCountTypes[p] >= 0)
+						{
+							int corners = (int) readPlyValue(listCountTypes[p]);
+							for (int j = 0; j < corners; j++)
+							{
+								addPolygonCorner((int) readPlyValue(types[p]), -1);
+							}
+							endPolygon();
+						}
+						else if (listCountTypes[p] >= 0)
+						{
+							skipPlyList(listCountTypes[p], types[p]);
+						}
+						else
+						{
+							readPlyValue(types[p]);
+						}
+					}
+				}
+			}
+			else
+			{
+				for (int i = 0; i < element.count; i++)
+				{
+					for (int p = 0; p < propertyCount; p++)
+					{
+						if (listCountTypes[p] >= 0)
+						{
+							skipPlyList(listCountTypes[p], types[p]);
+						}
+						else
+						{
+							readPlyValue(types[p]);
+						}
+					}
+				}
+			}
+		}
+
+		return buildMesh(hasUvs);
+	}
+
+	void skipPlyList(int countType, int type) throws IOException
+	{
+		int count = (int) readPlyValue(countType);
+		for (int i = 0; i < count; i++)
+		{
+			readPlyValue(type);
+		}
+	}
+
+	void addPosition(float px, float py, float pz)
+	{
+		if (vertexCount == x.length)
+		{
+			x = Arrays.copyOf(x, vertexCount * 2);
+			y = Arrays.copyOf(y, vertexCount * 2);
+			z = Arrays.copyOf(z, vertexCount * 2);
+		}
+		x[vertexCount] = px;
+		y[vertexCount] = py;
+		z[vertexCount] = pz;
+		vertexCount++;
+	}
+
+	void addUv(float pu, float pv)
+	{
+		if (uvCount == u.length)
+		{
+			u = Arrays.copyOf(u, uvCount * 2);
+			v = Arrays.copyOf(v, uvCount * 2);
+		}
+		u[uvCount] = pu;
+		v[uvCount] = pv;
+		uvCount++;
+	}
+
+	void addCorner(int vertex, int uv)
+	{
+		if (cornerCount == cornerVertices.length)
+		{
+			cornerVertices = Arrays.copyOf(cornerVertices, cornerCount * 2);
+			cornerUvs = Arrays.copyOf(cornerUvs, cornerCount * 2);
+		}
+		cornerVertices[cornerCount] = vertex;
+		cornerUvs[cornerCount] = uv;
+		cornerCount++;
+	}
+
+	void addPolygonCorner(int vertex, int uv)
+	{
+		if (polygonCount == polygonVertices.length)
+		{
+			polygonVertices = Arrays.copyOf(polygonVertices, polygonCount * 2);
+			polygonUvs = Arrays.copyOf(polygonUvs, polygonCount * 2);
+		}
+		polygonVertices[polygonCount] = vertex;
+		polygonUvs[polygonCount] = uv;
+		polygonCount++;
+	}
+
+	/**
+	 * Adds the current polygon as a triangle fan.
+	 */
+	void endPolygon()
+	{
+		for (int i = 1; i < polygonCount - 1; i++)
+		{
+			addCorner(polygonVertices[0], polygonUvs[0]);
+			addCorner(polygonVertices[i], polygonUvs[i]);
+			addCorner(polygonVertices[i + 1], polygonUvs[i + 1]);
+		}
+		polygonCount = 0;
+	}
+
+	/**
+	 * @param uvPerVertex `true` if the texture coordinates were read along with the positions (one per vertex).
+	 */
+	Mesh buildMesh(boolean uvPerVertex) throws IOException
+	{
+		boolean hasUvs = false;
+		for (int i = 0; i < cornerCount; i++)
+		{
+			if (cornerVertices[i] < 0 || cornerVertices[i] >= vertexCount || cornerUvs[i] >= uvCount)
+			{
+				throw new IOException("Face index out of range.");
+			}
+			hasUvs |= cornerUvs[i] >= 0;
+		}
+
+		int[] indices = Arrays.copyOf(cornerVertices, cornerCount);
+		if (uvPerVertex)
+		{
+			return new Mesh(Arrays.copyOf(x, vertexCount), Arrays.copyOf(y, vertexCount), Arrays.copyOf(z, vertexCount),
+				Arrays.copyOf(u, vertexCount), Arrays.copyOf(v, vertexCount), indices);
+		}
+		if (!hasUvs)
+		{
+			return new Mesh(Arrays.copyOf(x, vertexCount), Arrays.copyOf(y, vertexCount), Arrays.copyOf(z, vertexCount),
+				new float[vertexCount], new float[vertexCount], indices);
+		}
+
+		// OBJ faces index positions and texture coordinates separately, so every distinct pair becomes a vertex.
+		int capacity = 16;
+		while (capacity < cornerCount * 2)
+		{
+			capacity <<= 1;
+		}
+		long[] keys = new long[capacity];
+		int[] slots = new int[capacity];
+		Arrays.fill(slots, -1);
+
+		float[] outX = new float[cornerCount], outY = new float[cornerCount], outZ = new float[cornerCount];
+		float[] outU = new float[cornerCount], outV = new float[cornerCount];
+		int n = 0;
+
+		for (int i = 0; i < cornerCount; i++)
+		{
+			int vertex = cornerVertices[i], uv = cornerUvs[i];
+			long key = ((long) vertex << 32) | (uv & 0xffffffffL);
+			int slot = (int) ((key * 0x9e3779b97f4a7c15L) >>> 40) & (capacity - 1);
+			while (slots[slot] != -1 && keys[slot] != key)
+			{
+				slot = (slot + 1) & (capacity - 1);
+			}
+
+			if (slots[slot] == -1)
+			{
+				keys[slot] = key;
+				slots[slot] = n;
+				outX[n] = x[vertex];
+				outY[n] = y[vertex];
+				outZ[n] = z[vertex];
+				outU[n] = uv >= 0 ? u[uv] : 0.0f;
+				outV[n] = uv >= 0 ? v[uv] : 0.0f;
+				n++;
+			}
+			indices[i] = slots[slot];
+		}
+
+		return new Mesh(Arrays.copyOf(outX, n), Arrays.copyOf(outY, n), Arrays.copyOf(outZ, n),
+			Arrays.copyOf(outU, n), Arrays.copyOf(outV, n), indices);
+	}
+}
+
+/**
+ * Data-parallel versions of the hottest loops of the renderer.
+ * 
+ * The implementation (`VectorKernels`, in `VectorKernels.java`) is built on top of the `jdk.incubator.vector` module.
+ * It is optional, since this module is not available on every JDK and it is not resolved by default (it requires `--add-modules jdk.incubator.vector`).
+ */
+interface SimdKernels
+{
+	/**
+	 * @return The number of pixels `coverageMask` evaluates at once.
+	 */
+	int lanes();
+
+	String describe();
+
+	/**
+	 * Same as `Matrix4x4f.multiply(Vector4f, true)` for each `(inX[i], inY[i], inZ[i], 1)`, storing the XYZ coordinates in the output arrays (at `outOffset + i`).
+	 */
+	void transform(Matrix4x4f matrix, float[] inX, float[] inY, float[] inZ, float[] outX, float[] outY, float[] outZ, int outOffset, int count);
+
+	/**
+	 * Tests `lanes()` consecutive pixels of a row against the three edge functions of `BasicShaders.face` (fixed point, bias already subtracted).
+	 * @param w0 The value of the first edge function at the first pixel (`stepX0` is added for every pixel to the right), and the same for the others.
+	 * @return A mask with bit `i` set if the `i`-th pixel is inside of the triangle (all three values are not negative).
+	 */
+	long coverageMask(long w0, long w1, long w2, long stepX0, long stepX1, long stepX2);
+}
+
+class SimdSupport
+{
+	// `null` if the Vector API is not available; the scalar code is used instead.
+	static final SimdKernels KERNELS = load();
+
+	static SimdKernels load()
+	{
+		if (!ModuleLayer.boot().findModule("jdk.incubator.vector").isPresent())
+		{
+			return null;
+		}
+
+		try
+		{
+			return (SimdKernels) Class.forName("VectorKernels").getDeclaredConstructor().newInstance();
+		}
+		catch (ReflectiveOperationException | LinkageError ex)
+		{
+			return null;
+		}
+	}
+
+	public static String describe()
+	{
+		return KERNELS != null ?
+			"SIMD: using " + KERNELS.describe() :
+			"SIMD: jdk.incubator.vector is not available, using scalar code";
+	}
+}
+
+/**
+ * Screen-space vertices of one or more instances of a mesh, stored as a structure of arrays.
+ * 
+ * The XYZ coordinates are transformed once per frame; the texture coordinates (and the triangle indices) are shared with the mesh.
+ * With more than one instance, the vertices of instance `i` start at `i * mesh.getVertexCount()`, and the texture coordinates and indices are repeated (and offset) for every instance.
+ */
+class VertexBuffer
+{
+	float[] x = new float[0], y = new float[0], z = new float[0];
+	float[] u, v;
+	int[] indices;
+	int count = 0;
+
+	// Repeated texture coordinates and indices, filled for the first `repeatedInstances` instances of `repeatedMesh`.
+	Mesh repeatedMesh = null;
+	float[] repeatedU = new float[0], repeatedV = new float[0];
+	int[] repeatedIndices = new int[0];
+	int repeatedInstances = 0;
+
+	/**
+	 * Transforms every vertex of `mesh` with `matrix`, projects it and converts it to framebuffer coordinates (Z is left untouched).
+	 */
+	public void transform(Mesh mesh, Matrix4x4f matrix, int framebufferWidth, int framebufferHeight)
+	{
+		begin(mesh, 1);
+		transform(mesh, matrix, framebufferWidth, framebufferHeight, 0);
+	}
+
+	/**
+	 * Makes room for `instances` instances of `mesh` (see `transform`).
+	 */
+	public void begin(Mesh mesh, int instances)
+	{
+		int vertexCount = mesh.getVertexCount();
+		count = vertexCount * instances;
+		if (x.length < count)
+		{
+			x = new float[count];
+			y = new float[count];
+			z = new float[count];
+		}
+
+		if (instances <= 1)
+		{
+			u = mesh.u;
+			v = mesh.v;
+			indices = mesh.indices;
+			return;
+		}
+
+		// The repeated arrays only depend on the mesh, so they are only filled once for every instance.
+		if (repeatedMesh != mesh)
+		{
+			repeatedMesh = mesh;
+			repeatedInstances = 0;
+		}
+		if (repeatedInstances < instances)
+		{
+			if (repeatedU.length < count)
+			{
+				repeatedU = Arrays.copyOf(repeatedU, count);
+				repeatedV = Arrays.copyOf(repeatedV, count);
+				repeatedIndices = Arrays.copyOf(repeatedIndices, mesh.indices.length * instances);
+			}
+			for (int instance = repeatedInstances; instance < instances; instance++)
+			{
+				int vertexOffset = instance * vertexCount;
+				System.arraycopy(mesh.u, 0, repeatedU, vertexOffset, vertexCount);
+				System.arraycopy(mesh.v, 0, repeatedV, vertexOffset, vertexCount);
+				for (int i = 0, j = instance * mesh.indices.length; i < mesh.indices.length; i++, j++)
+				{
+					repeatedIndices[j] = mesh.indices[i] + vertexOffset;
+				}
+			}
+			repeatedInstances = instances;
+		}
+		u = repeatedU;
+		v = repeatedV;
+		indices = repeatedIndices;
+	}
+
+	/**
+	 * Same as above, but only for the vertices of `instance` (see `begin`).
+	 */
+	public void transform(Mesh mesh, Matrix4x4f matrix, int framebufferWidth, int framebufferHeight, int instance)
+	{
+		int vertexCount = mesh.getVertexCount();
+		int first = instance * vertexCount, end = first + vertexCount;
+
+		// Model space to world space.
+		if (SimdSupport.KERNELS != null)
+		{
+			SimdSupport.KERNELS.transform(matrix, mesh.x, mesh.y, mesh.z, x, y, z, first, vertexCount);
+		}
+		else
+		{
+			float[] inX = mesh.x, inY = mesh.y, inZ = mesh.z;
+			for (int i = 0; i < vertexCount; i++)
+			{
+				float vx = inX[i], vy = inY[i], vz = inZ[i];
+				float w = (matrix.A41 * vx) + (matrix.A42 * vy) + (matrix.A43 * vz) + matrix.A44;
+				x[first + i] = ((matrix.A11 * vx) + (matrix.A12 * vy) + (matrix.A13 * vz) + matrix.A14) / w;
+				y[first + i] = ((matrix.A21 * vx) + (matrix.A22 * vy) + (matrix.A23 * vz) + matrix.A24) / w;
+				z[first + i] = ((matrix.A31 * vx) + (matrix.A32 * vy) + (matrix.A33 * vz) + matrix.A34) / w;
+			}
+		}
+
+		for (int i = first; i < end; i++)
+		{
+			// World space to projection (NDC framebuffer) space (see `Vector3f.zProject`).
+			float pz = (float) Math.log(z[i] + 1);
+
+			// NDC to absolute framebuffer coordinates (see `ThreeDee.ndcToFbSize`).
+			x[i] = ((x[i] / pz + 1.0f) / 2) * framebufferWidth;
+			y[i] = ((y[i] / pz + 1.0f) / 2) * framebufferHeight;
+		}
+	}
+
+	public Vector3f toVector3f(int vertex)
+	{
+		return new Vector3f(x[vertex], y[vertex], z[vertex]);
+	}
+}
+
+class BasicShaders
+{
+	// Lines are drawn slightly nearer than they are, so the faces they belong to don't hide them.
+	static final float LINE_DEPTH_BIAS = 1e-3f;
+
+	/**
+	 * Draws the line from the vertex `a` to the vertex `b` of `vertices` straight into `framebuffer`, with the depth interpolated along the line and depth-tested.
+	 * The line is clipped to the framebuffer and then stepped with Bresenham's algorithm; only the pixels inside the `[clipMinX, clipMaxX)×[clipMinY, clipMaxY)` rectangle are written,
+	 * but the pixels of the line don't depend on it (so lines split in tiles are the same as whole ones).
+	 * Lines with a vertex behind the near plane are not drawn: their projection is not defined.
+	 * @return The number of pixels written.
+	 */
+	static int line(VertexBuffer vertices, int a, int b, Framebuffer framebuffer, int clipMinX, int clipMinY, int clipMaxX, int clipMaxY, int color)
+	{
+		float ax = vertices.x[a], ay = vertices.y[a], az = vertices.z[a];
+		float bx = vertices.x[b], by = vertices.y[b], bz = vertices.z[b];
+		if (!(az > 0.1f && bz > 0.1f))
+		{
+			return 0;
+		}
+
+		// Clip the line to the framebuffer: only its `[t0, t1]` part is inside (Liang-Barsky).
+		int width = framebuffer.bufferSize.X, height = framebuffer.bufferSize.Y;
+		float dx = bx - ax, dy = by - ay;
+		float t0 = 0, t1 = 1;
+		if (dx != 0)
+		{
+			float tLeft = -ax / dx, tRight = (width - ax) / dx;
+			t0 = Math.max(t0, Math.min(tLeft, tRight));
+			t1 = Math.min(t1, Math.max(tLeft, tRight));
+		}
+		else if (ax < 0 || ax > width)
+		{
+			return 0;
+		}
+		if (dy != 0)
+		{
+			float tTop = -ay / dy, tBottom = (height - ay) / dy;
+			t0 = Math.max(t0, Math.min(tTop, tBottom));
+			t1 = Math.min(t1, Math.max(tTop, tBottom));
+		}
+		else if (ay < 0 || ay > height)
+		{
+			return 0;
+		}
+		if (!(t0 <= t1))
+		{
+			return 0;
+		}
+
+		int x0 = Math.min(Math.max((int) Math.floor(ax + t0 * dx), 0), width - 1);
+		int y0 = Math.min(Math.max((int) Math.floor(ay + t0 * dy), 0), height - 1);
+		int x1 = Math.min(Math.max((int) Math.floor(ax + t1 * dx), 0), width - 1);
+		int y1 = Math.min(Math.max((int) Math.floor(ay + t1 * dy), 0), height - 1);
+		float z0 = az + t0 * (bz - az), z1 = az + t1 * (bz - az);
+
+		int stepsX = Math.abs(x1 - x0), stepsY = Math.abs(y1 - y0);
+		int directionX = x0 < x1 ? 1 : -1, directionY = y0 < y1 ? 1 : -1;
+		int steps = Math.max(stepsX, stepsY);
+		float z = z0 * (1 - LINE_DEPTH_BIAS);
+		float dz = steps > 0 ? (z1 - z0) * (1 - LINE_DEPTH_BIAS) / steps : 0;
+
+		int pixels = 0;
+		int error = stepsX - stepsY;
+		for (int x = x0, y = y0, step = 0; step <= steps; step++, z += dz)
+		{
+			if (x >= clipMinX && x < clipMaxX && y >= clipMinY && y < clipMaxY && framebuffer.depthTest(x, y, z))
+			{
+				framebuffer.set(x, y, z, color);
+				pixels++;
+			}
+
+			int doubleError = error * 2;
+			if (doubleError > -stepsY)
+			{
+				error -= stepsY;
+				x += directionX;
+			}
+			if (doubleError < stepsX)
+			{
+				error += stepsX;
+				y += directionY;
+			}
+		}
+		return pixels;
+	}
+
+	static float edgeFunction(Vector3f a, Vector3f b, Vector3f c)
+	{
+		return edgeFunction(a.X, a.Y, b.X, b.Y, c.X, c.Y);
+	}
+	
+	static float edgeFunction(Vector2f a, Vector2f b, Vector2f c)
+	{
+		return edgeFunction(a.X, a.Y, b.X, b.Y, c.X, c.Y);
+	}
+
+	static float edgeFunction(float ax, float ay, float bx, float by, float cx, float cy)
+	{
+		return ((cx - ax) * (by - ay) - (cy - ay) * (bx - ax));
+	}
+
+	// TODO: Should this be a framebuffer method?
+	/**
+	 * Rasterizes the triangle formed by the vertices `a`, `b` and `c` of `vertices`, pushing every covered pixel into `sink` as it is found.
+	 * @return The number of fragments that were generated.
+	 */
+	static int face(VertexBuffer vertices, int a, int b, int c, Vector2i framebufferSize, FragmentSink sink)
+	{
+		return face(vertices, a, b, c, framebufferSize, 0, 0, framebufferSize.X, framebufferSize.Y, null, null, 0, sink);
+	}
+
+	// Vertices are snapped to 1/16 of a pixel, so the edge functions are exact integers and can be stepped from one pixel to the next with additions.
+	static final int SUBPIXEL_BITS = 4;
+	static final int SUBPIXEL_SCALE = 1 << SUBPIXEL_BITS;
+	// Triangles with a vertex farther than this from the framebuffer (in pixels) aren't drawn, so the edge functions never overflow.
+	// Only vertices almost at the plane of the camera are projected that far.
+	static final float GUARD_BAND = 1 << 22;
+
+	/**
+	 * Same as above, but only the pixels inside the `[clipMinX, clipMaxX)×[clipMinY, clipMaxY)` rectangle are rasterized.
+	 * 
+	 * Pixels exactly on an edge belong to the triangle only if it's a top or a left edge (the top-left rule), so pixels on an edge shared by two triangles are drawn exactly once.
+	 * Which pixels are covered and their values don't depend on the rectangle, so triangles split in tiles are the same as whole ones.
+	 * @param coarseDepth If not null, the blocks of pixels of this framebuffer where the whole triangle is hidden (see `Framebuffer.getCoarseDepth`) are skipped,
+	 * and counted in `rejectedBlocks[counter]`.
+	 */
+	static int face(VertexBuffer vertices, int a, int b, int c, Vector2i framebufferSize,
+		int clipMinX, int clipMinY, int clipMaxX, int clipMaxY, Framebuffer coarseDepth, int[] rejectedBlocks, int counter, FragmentSink sink)
+	{
+		float ax = vertices.x[a], ay = vertices.y[a], az = vertices.z[a];
+		float bx = vertices.x[b], by = vertices.y[b], bz = vertices.z[b];
+		float cx = vertices.x[c], cy = vertices.y[c], cz = vertices.z[c];
+
+		float startX = Math.min(Math.min(ax, bx), Math.min(cx, framebufferSize.X));
+		float endX = Math.max(Math.max(ax, bx), Math.max(cx, 0));
+		float startY = Math.min(Math.min(ay, by), Math.min(cy, framebufferSize.Y));
+		float endY = Math.max(Math.max(ay, by), Math.max(cy, 0));
+		float startZ = Math.min(Math.min(az, bz), Math.min(cz, Float.MAX_VALUE));
+		float endZ = Math.max(Math.max(az, bz), Math.max(cz, 0));
+
+		// Check if:
+		//   1. The triangle is behind the camera or too far away.
+		//   2. The triangle is outside of the bounds of the framebuffer.
+		//   3. A vertex is outside of the guard band (or not a number).
+		// If one of them is true, do not render the triangle.
+		if ((endZ < 0.01f || startZ > 100.0f) ||
+			((endX < 0 || startX > framebufferSize.X) && (endY < 0 || startY > framebufferSize.Y)) ||
+			!(startX > -GUARD_BAND && endX < GUARD_BAND && startY > -GUARD_BAND && endY < GUARD_BAND))
+		{
+			return 0;
+		}
+
+		// Triangle setup, in fixed point.
+		long fax = Math.round(ax * SUBPIXEL_SCALE), fay = Math.round(ay * SUBPIXEL_SCALE);
+		long fbx = Math.round(bx * SUBPIXEL_SCALE), fby = Math.round(by * SUBPIXEL_SCALE);
+		long fcx = Math.round(cx * SUBPIXEL_SCALE), fcy = Math.round(cy * SUBPIXEL_SCALE);
+		if ((fcx - fax) * (fby - fay) - (fcy - fay) * (fbx - fax) <= 0)
+		{
+			return 0; // Degenerate (or clockwise) once snapped.
+		}
+
+		// Edge `i` goes from vertex `i` to the next one (`ab`, `bc` and `ca`), and its function is positive inside of the triangle.
+		// Moving one pixel right adds `stepX` to it, and moving one pixel down adds `stepY`.
+		long stepX0 = (fby - fay) << SUBPIXEL_BITS, stepY0 = (fax - fbx) << SUBPIXEL_BITS;
+		long stepX1 = (fcy - fby) << SUBPIXEL_BITS, stepY1 = (fbx - fcx) << SUBPIXEL_BITS;
+		long stepX2 = (fay - fcy) << SUBPIXEL_BITS, stepY2 = (fcx - fax) << SUBPIXEL_BITS;
+		// Pixels on an edge (where its function is 0) are only covered if it is a top edge (horizontal, with the triangle below) or a left edge (with the triangle on its right).
+		// Other edges need at least 1, so `value - bias` is negative outside for every edge.
+		long bias0 = isTopLeftEdge(stepX0, stepY0) ? 0 : 1;
+		long bias1 = isTopLeftEdge(stepX1, stepY1) ? 0 : 1;
+		long bias2 = isTopLeftEdge(stepX2, stepY2) ? 0 : 1;
+
+		// Depth and texture coordinates are interpolated linearly on screen, so their derivatives are the same for the whole triangle.
+		float area = edgeFunction(ax, ay, bx, by, cx, cy);
+		float dzdx = ((by - ay) * cz + (cy - by) * az + (ay - cy) * bz) / area;
+		float dzdy = ((ax - bx) * cz + (bx - cx) * az + (cx - ax) * bz) / area;
+		float au = vertices.u[a], av = vertices.v[a];
+		float bu = vertices.u[b], bv = vertices.v[b];
+		float cu = vertices.u[c], cv = vertices.v[c];
+		float dudx = ((by - ay) * cu + (cy - by) * au + (ay - cy) * bu) / area;
+		float dudy = ((ax - bx) * cu + (bx - cx) * au + (cx - ax) * bu) / area;
+		float dvdx = ((by - ay) * cv + (cy - by) * av + (ay - cy) * bv) / area;
+		float dvdy = ((ax - bx) * cv + (bx - cx) * av + (cx - ax) * bv) / area;
+		float uFootprint = Math.max(Math.abs(dudx), Math.abs(dudy));
+		float vFootprint = Math.max(Math.abs(dvdx), Math.abs(dvdy));
+
+		// With SIMD, the edge functions are evaluated for a run of pixels of the row at once, and runs with no coverage are skipped.
+		// Triangles narrower than two runs have little to skip, and the scalar test is cheaper for them.
+		SimdKernels simd = SimdSupport.KERNELS;
+		if (simd != null && endX - startX < 2 * simd.lanes())
+		{
+			simd = null;
+		}
+		int lanes = simd != null ? simd.lanes() : 1;
+
+		// The early depth test is done once per block of each row, with the nearest depth of the whole triangle.
+		// Interpolated depths are clamped to the depths of the vertices, so no fragment of the triangle is nearer than that.
+		boolean earlyDepthTest = coarseDepth != null && startZ > 0;
+		int blockMask = Framebuffer.COARSE_BLOCK_SIZE - 1;
+
+		int fragments = 0;
+		int firstX = Math.max(clipMinX, (int) Math.max(0, startX));
+		int firstY = Math.max(clipMinY, (int) Math.max(0, startY));
+
+		// The edge functions at the first pixel of the first row (the sample point of a pixel is its top-left corner). Every other pixel only adds steps to them.
+		long px = (long) firstX << SUBPIXEL_BITS, py = (long) firstY << SUBPIXEL_BITS;
+		long rowW0 = ((px - fax) * (fby - fay) - (py - fay) * (fbx - fax)) - bias0;
+		long rowW1 = ((px - fbx) * (fcy - fby) - (py - fby) * (fcx - fbx)) - bias1;
+		long rowW2 = ((px - fcx) * (fay - fcy) - (py - fcy) * (fax - fcx)) - bias2;
+
+		for (int y = firstY; y < Math.min(clipMaxY, endY); y++, rowW0 += stepY0, rowW1 += stepY1, rowW2 += stepY2)
+		{
+			long w0 = rowW0, w1 = rowW1, w2 = rowW2;
+
+			// The attributes at `x = 0` of the row: each pixel only adds its X derivative (so the values don't depend on where the row starts).
+			float rowZ = az + dzdx * -ax + dzdy * (y - ay);
+			float rowU = au + dudx * -ax + dudy * (y - ay);
+			float rowV = av + dvdx * -ax + dvdy * (y - ay);
+
+			boolean entered = false;
+			long coverage = 0;
+			int lane = 0;
+			for (int x = firstX; x < Math.min(clipMaxX, endX); x++, w0 += stepX0, w1 += stepX1, w2 += stepX2, lane = lane + 1 == lanes ? 0 : lane + 1)
+			{
+				if (earlyDepthTest && (x == firstX || (x & blockMask) == 0) &&
+					startZ >= coarseDepth.getCoarseDepth(x >> Framebuffer.COARSE_BLOCK_SHIFT, y >> Framebuffer.COARSE_BLOCK_SHIFT))
+				{
+					if (y == firstY || (y & blockMask) == 0) // Count each block only once, in its first row.
+					{
+						rejectedBlocks[counter]++;
+					}
+					// Skip to the last pixel of the block, and start a new run after it.
+					int skipped = (x | blockMask) - x;
+					x += skipped;
+					w0 += stepX0 * skipped;
+					w1 += stepX1 * skipped;
+					w2 += stepX2 * skipped;
+					lane = lanes - 1;
+					continue;
+				}
+				if (simd != null && lane == 0)
+				{
+					coverage = simd.coverageMask(w0, w1, w2, stepX0, stepX1, stepX2);
+					if (coverage == 0)
+					{
+						if (entered)
+						{
+							break;
+						}
+						// Skip to the last pixel of the run.
+						x += lanes - 1;
+						w0 += stepX0 * (lanes - 1);
+						w1 += stepX1 * (lanes - 1);
+						w2 += stepX2 * (lanes - 1);
+						lane = lanes - 1;
+						continue;
+					}
+				}
+
+				// If `(x, y)` is inside the triangle (between `a`, `b` and `c`). The SIMD mask is the same test, done in advance.
+				if (simd != null ? (coverage & (1L << lane)) != 0 : (w0 | w1 | w2) >= 0)
+				{
+					entered = true;
+
+					float z = rowZ + dzdx * x;
+					z = z < startZ ? startZ : (z > endZ ? endZ : z);
+					sink.fragment(x, y, z, rowU + dudx * x, rowV + dvdx * x, uFootprint, vFootprint);
+					fragments++;
+				}
+				else if (entered)
+				{
+					break; // Triangles are convex: the rest of the row is outside too.
+				}
+			}
+		}
+
+		return fragments;
+	}
+
+	/**
+	 * @return `true` if the edge whose function changes by `stepX` and `stepY` from one pixel to the next is a top or a left edge (see `face`).
+	 */
+	static boolean isTopLeftEdge(long stepX, long stepY)
+	{
+		return stepX > 0 || (stepX == 0 && stepY > 0);
+	}
+}
+
+/**
+ * Receives the fragments of a triangle as they are rasterized.
+ */
+interface FragmentSink
+{
+	/**
+	 * @param uFootprint How much the texture coordinate U changes from one fragment of the triangle to the next (the largest of the X and Y screen-space derivatives).
+	 * @param vFootprint The same, for V.
+	 */
+	void fragment(int x, int y, float z, float u, float v, float uFootprint, float vFootprint);
+}
+
+/**
+ * Depth-tests each fragment against the framebuffer and, only if it is visible, samples the texture and writes the shaded color.
+ */
+class TexturedFragmentSink implements FragmentSink
+{
+	Framebuffer framebuffer;
+	Texture texture;
+
+	public TexturedFragmentSink(Framebuffer framebuffer, Texture texture)
+	{
+		this.framebuffer = framebuffer;
+		this.texture = texture;
+	}
+
+	@Override
+	public void fragment(int x, int y, float z, float u, float v, float uFootprint, float vFootprint)
+	{
+		if (framebuffer.depthTest(x, y, z))
+		{
+			int texel = texture.getNdcPixel(u, v, texture.getLevel(uFootprint, vFootprint));
+			// Change fragment's brightness depending on the distance with the camera (only the Z coordinate).
+			framebuffer.set(x, y, z, PackedRgb.multiply(texel, 1.0f / z));
+		}
+	}
+}
+/**
+ * Bounding volume hierarchy of the triangles of a mesh, built once at load time.
+ * 
+ * The triangles of the mesh are reordered so that every node covers a contiguous range of them.
+ * Nodes are stored in depth-first order: the left child of a node is the next node, and the index of the right child is stored.
+ */
+class BoundingVolumeHierarchy
+{
+	static final int LEAF_SIZE = 16;
+
+	float[] minX = new float[64], minY = new float[64], minZ = new float[64];
+	float[] maxX = new float[64], maxY = new float[64], maxZ = new float[64];
+	int[] firstTriangle = new int[64], triangleCount = new int[64];
+	int[] rightChild = new int[64]; // -1 for leaves (which may have no triangles at all, if the mesh has none).
+	int nodeCount = 0;
+
+	// Per-triangle data used while building.
+	int[] order;
+	float[] centroidX, centroidY, centroidZ;
+
+	public BoundingVolumeHierarchy(Mesh mesh)
+	{
+		int triangles = mesh.getTriangleCount();
+		order = new int[triangles];
+		centroidX = new float[triangles];
+		centroidY = new float[triangles];
+		centroidZ = new float[triangles];
+		for (int t = 0; t < triangles; t++)
+		{
+			int a = mesh.indices[t * 3], b = mesh.indices[t * 3 + 1], c = mesh.indices[t * 3 + 2];
+			order[t] = t;
+			centroidX[t] = (mesh.x[a] + mesh.x[b] + mesh.x[c]) / 3;
+			centroidY[t] = (mesh.y[a] + mesh.y[b] + mesh.y[c]) / 3;
+			centroidZ[t] = (mesh.z[a] + mesh.z[b] + mesh.z[c]) / 3;
+		}
+
+		build(mesh, 0, triangles);
+
+		// Reorder the triangles of the mesh to match the leaves.
+		int[] indices = new int[mesh.indices.length];
+		for (int t = 0; t < triangles; t++)
+		{
+			System.arraycopy(mesh.indices, order[t] * 3, indices, t * 3, 3);
+		}
+		mesh.indices = indices;
+
+		order = null;
+		centroidX = centroidY = centroidZ = null;
+	}
+
+	int build(Mesh mesh, int first, int count)
+	{
+		int node = addNode();
+		firstTriangle[node] = first;
+
+		// Bounds of the vertices and of the centroids (the latter is used to choose the split).
+		float cMinX = Float.MAX_VALUE, cMinY = Float.MAX_VALUE, cMinZ = Float.MAX_VALUE;
+		float cMaxX = -Float.MAX_VALUE, cMaxY = -Float.MAX_VALUE, cMaxZ = -Float.MAX_VALUE;
+		minX[node] = minY[node] = minZ[node] = Float.MAX_VALUE;
+		maxX[node] = maxY[node] = maxZ[node] = -Float.MAX_VALUE;
+		for (int i = first; i < first + count; i++)
+		{
+			int t = order[i];
+			for (int v = 0; v < 3; v++)
+			{
+				int vertex = mesh.indices[t * 3 + v];
+				minX[node] = Math.min(minX[node], mesh.x[vertex]);
+				minY[node] = Math.min(minY[node], mesh.y[vertex]);
+				minZ[node] = Math.min(minZ[node], mesh.z[vertex]);
+				maxX[node] = Math.max(maxX[node], mesh.x[vertex]);
+				maxY[node] = Math.max(maxY[node], mesh.y[vertex]);
+				maxZ[node] = Math.max(maxZ[node], mesh.z[vertex]);
+			}
+			cMinX = Math.min(cMinX, centroidX[t]);
+			cMinY = Math.min(cMinY, centroidY[t]);
+			cMinZ = Math.min(cMinZ, centroidZ[t]);
+			cMaxX = Math.max(cMaxX, centroidX[t]);
+			cMaxY = Math.max(cMaxY, centroidY[t]);
+			cMaxZ = Math.max(cMaxZ, centroidZ[t]);
+		}
+
+		if (count <= LEAF_SIZE)
+		{
+			triangleCount[node] = count;
+			rightChild[node] = -1;
+			return node;
+		}
+
+		// Split at the middle of the largest axis of the centroid bounds.
+		float extentX = cMaxX - cMinX, extentY = cMaxY - cMinY, extentZ = cMaxZ - cMinZ;
+		float[] centroids = extentX >= extentY && extentX >= extentZ ? centroidX : (extentY >= extentZ ? centroidY : centroidZ);
+		float middle = centroids == centroidX ? (cMinX + cMaxX) / 2 : (centroids == centroidY ? (cMinY + cMaxY) / 2 : (cMinZ + cMaxZ) / 2);
+
+		int split = first;
+		for (int i = first; i < first + count; i++)
+		{
+			if (centroids[order[i]] < middle)
+			{
+				int swap = order[i];
+				order[i] = order[split];
+				order[split] = swap;
+				split++;
+			}
+		}
+		// All centroids are on the same side (e.g. they are all equal); split in two halves.
+		if (split == first || split == first + count)
+		{
+			split = first + count / 2;
+		}
+
+		build(mesh, first, split - first);
+		int right = build(mesh, split, first + count - split); // Not assigned directly: building may grow the arrays.
+		rightChild[node] = right;
+		return node;
+	}
+
+	public boolean isLeaf(int node)
+	{
+		return rightChild[node] < 0;
+	}
+
+	int addNode()
+	{
+		if (nodeCount == minX.length)
+		{
+			int capacity = nodeCount * 2;
+			minX = Arrays.copyOf(minX, capacity);
+			minY = Arrays.copyOf(minY, capacity);
+			minZ = Arrays.copyOf(minZ, capacity);
+			maxX = Arrays.copyOf(maxX, capacity);
+			maxY = Arrays.copyOf(maxY, capacity);
+			maxZ = Arrays.copyOf(maxZ, capacity);
+			firstTriangle = Arrays.copyOf(firstTriangle, capacity);
+			triangleCount = Arrays.copyOf(triangleCount, capacity);
+			rightChild = Arrays.copyOf(rightChild, capacity);
+		}
+		return nodeCount++;
+	}
+}
+
+/**
+ * Decides which triangles of a mesh need to be rasterized in the current frame.
+ * 
+ * Clusters of triangles (BVH nodes) are first rejected if they are completely outside of the view volume.
+ * Then, the triangles of the visible clusters that face away from the camera (clockwise on screen) are dropped.
+ */
+class TriangleCuller
+{
+	int[] visible = new int[0];
+	int visibleCount = 0;
+
+	// Instances whose bounding box may be visible (see `cullInstances`).
+	int[] visibleInstances = new int[0];
+	int visibleInstanceCount = 0;
+
+	// Counters of the last frame.
+	int backFacing = 0, offScreen = 0;
+
+	int[] stack = new int[64];
+	Matrix4x4f modelView = new Matrix4x4f(0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0);
+
+	// Scratch arrays of `sortFrontToBack`.
+	int[] sortKeys = new int[0], sortedKeys = new int[0], sortedVisible = new int[0];
+	int[] digitCounts = new int[256];
+
+	/**
+	 * Drops the instances that can't be visible, and counts their triangles as off-screen.
+	 * The rest are stored in `visibleInstances`; only these have to be transformed and culled (see `cullVisibleInstances`).
+	 * @param view The transform shared by every instance (see `InstanceBuffer.getModelViewMatrix`). The model rotation doesn't matter: instances are tested as spheres.
+	 */
+	public void cullInstances(Mesh mesh, BoundingVolumeHierarchy bvh, InstanceBuffer instances, Matrix4x4f view, float farPlane)
+	{
+		if (visibleInstances.length < instances.count)
+		{
+			visibleInstances = new int[instances.count];
+		}
+		visibleInstanceCount = 0;
+		backFacing = 0;
+		offScreen = 0;
+		if (mesh.getTriangleCount() == 0)
+		{
+			return; // Nothing to draw (and the bounds of the mesh are empty).
+		}
+
+		// Every instance is tested as a sphere (around its position) that contains the mesh in any rotation, so only its position has to be transformed.
+		// The view may scale each axis differently: the sphere is an ellipsoid in view space, with these radii (per unit of radius).
+		float radius = getBoundingRadius(bvh);
+		float radiusX = (float) Math.sqrt((view.A11 * view.A11) + (view.A12 * view.A12) + (view.A13 * view.A13));
+		float radiusY = (float) Math.sqrt((view.A21 * view.A21) + (view.A22 * view.A22) + (view.A23 * view.A23));
+		float radiusZ = (float) Math.sqrt((view.A31 * view.A31) + (view.A32 * view.A32) + (view.A33 * view.A33));
+
+		for (int i = 0; i < instances.count; i++)
+		{
+			float px = instances.x[i], py = instances.y[i], pz = instances.z[i];
+			float vx = (view.A11 * px) + (view.A12 * py) + (view.A13 * pz) + view.A14;
+			float vy = (view.A21 * px) + (view.A22 * py) + (view.A23 * pz) + view.A24;
+			float vz = (view.A31 * px) + (view.A32 * py) + (view.A33 * pz) + view.A34;
+			float r = radius * instances.scales[i];
+
+			if (isOutside(vx, vy, vz, r * radiusX, r * radiusY, r * radiusZ, farPlane))
+			{
+				offScreen += mesh.getTriangleCount();
+			}
+			else
+			{
+				visibleInstances[visibleInstanceCount++] = i;
+			}
+		}
+	}
+
+	/**
+	 * Culls the triangles of every instance kept by `cullInstances`, once their vertices are in `vertices` (the `i`-th visible instance at slot `i`, see `VertexBuffer.begin`).
+	 * The visible triangles are indices into `vertices.indices`.
+	 */
+	public void cullVisibleInstances(Mesh mesh, BoundingVolumeHierarchy bvh, InstanceBuffer instances, Matrix4x4f view, Matrix4x4f model,
+		VertexBuffer vertices, float farPlane)
+	{
+		if (visible.length < mesh.getTriangleCount() * visibleInstanceCount)
+		{
+			visible = new int[mesh.getTriangleCount() * visibleInstanceCount];
+		}
+		visibleCount = 0;
+
+		for (int slot = 0; slot < visibleInstanceCount; slot++)
+		{
+			instances.getModelViewMatrix(visibleInstances[slot], view, model, modelView);
+			cull(mesh, bvh, modelView, vertices, farPlane, slot);
+		}
+	}
+
+	/**
+	 * Appends the visible triangles of the instance at `slot` of `vertices` to `visible`.
+	 */
+	void cull(Mesh mesh, BoundingVolumeHierarchy bvh, Matrix4x4f modelView, VertexBuffer vertices, float farPlane, int slot)
+	{
+		int vertexOffset = slot * mesh.getVertexCount();
+		int triangleOffset = slot * mesh.getTriangleCount();
+
+		int top = 0;
+		stack[top++] = 0;
+		while (top > 0)
+		{
+			int node = stack[--top];
+
+			if (isOutside(bvh, node, modelView, farPlane))
+			{
+				offScreen += getTriangleCount(bvh, node);
+			}
+			else if (bvh.isLeaf(node))
+			{
+				int[] indices = mesh.indices;
+				for (int t = bvh.firstTriangle[node]; t < bvh.firstTriangle[node] + bvh.triangleCount[node]; t++)
+				{
+					int a = indices[t * 3] + vertexOffset, b = indices[t * 3 + 1] + vertexOffset, c = indices[t * 3 + 2] + vertexOffset;
+					float area = BasicShaders.edgeFunction(vertices.x[a], vertices.y[a], vertices.x[b], vertices.y[b], vertices.x[c], vertices.y[c]);
+
+					// The rasterizer only covers pixels of counterclockwise triangles (this also drops degenerate ones).
+					if (area > 0)
+					{
+						visible[visibleCount++] = t + triangleOffset;
+					}
+					else
+					{
+						backFacing++;
+					}
+				}
+			}
+			else
+			{
+				if (top + 2 > stack.length)
+				{
+					stack = Arrays.copyOf(stack, stack.length * 2);
+				}
+				// Push the right child first, so the left child (and the original order) is visited first.
+				stack[top++] = bvh.rightChild[node];
+				stack[top++] = node + 1;
+			}
+		}
+	}
+
+	/**
+	 * Sorts the visible triangles by their nearest vertex, so the nearest ones are drawn first and hide the rest as early as possible (see `SceneRasterizer.earlyDepthTest`).
+	 * It's a radix sort of the depths (as integers that sort the same way as the floats), so it takes linear time.
+	 */
+	public void sortFrontToBack(VertexBuffer vertices)
+	{
+		if (sortKeys.length < visibleCount)
+		{
+			sortKeys = new int[visible.length];
+			sortedKeys = new int[visible.length];
+			sortedVisible = new int[visible.length];
+		}
+
+		int[] indices = vertices.indices;
+		float[] z = vertices.z;
+		for (int i = 0; i < visibleCount; i++)
+		{
+			int t = visible[i] * 3;
+			int bits = Float.floatToRawIntBits(Math.min(Math.min(z[indices[t]], z[indices[t + 1]]), z[indices[t + 2]]));
+			// Negative floats sort backwards as integers: flip all their bits. Then flip the sign bit of all of them, so they can be sorted as unsigned integers.
+			sortKeys[i] = (bits ^ ((bits >> 31) & 0x7fffffff)) ^ 0x80000000;
+		}
+
+		// One pass per byte, from the least significant one. Every pass is stable, so the order of the previous ones is kept.
+		for (int shift = 0; shift < 32; shift += 8)
+		{
+			Arrays.fill(digitCounts, 0);
+			for (int i = 0; i < visibleCount; i++)
+			{
+				digitCounts[(sortKeys[i] >>> shift) & 0xff]++;
+			}
+			for (int digit = 0, offset = 0; digit < 256; digit++)
+			{
+				int count = digitCounts[digit];
+				digitCounts[digit] = offset;
+				offset += count;
+			}
+			for (int i = 0; i < visibleCount; i++)
+			{
+				int position = digitCounts[(sortKeys[i] >>> shift) & 0xff]++;
+				sortedKeys[position] = sortKeys[i];
+				sortedVisible[position] = visible[i];
+			}
+
+			int[] swap = sortKeys;
+			sortKeys = sortedKeys;
+			sortedKeys = swap;
+			swap = visible;
+			visible = sortedVisible;
+			sortedVisible = swap;
+		}
+	}
+
+	/**
+	 * @return The distance from the origin to the farthest corner of the bounding box of the whole mesh.
+	 */
+	static float getBoundingRadius(BoundingVolumeHierarchy bvh)
+	{
+		float x = Math.max(Math.abs(bvh.minX[0]), Math.abs(bvh.maxX[0]));
+		float y = Math.max(Math.abs(bvh.minY[0]), Math.abs(bvh.maxY[0]));
+		float z = Math.max(Math.abs(bvh.minZ[0]), Math.abs(bvh.maxZ[0]));
+		return (float) Math.sqrt((x * x) + (y * y) + (z * z));
+	}
+
+	static int getTriangleCount(BoundingVolumeHierarchy bvh, int node)
+	{
+		// Nodes are in depth-first order, so the triangles of the next node after this subtree tell where it ends.
+		if (bvh.isLeaf(node))
+		{
+			return bvh.triangleCount[node];
+		}
+		int last = bvh.rightChild[node];
+		while (!bvh.isLeaf(last))
+		{
+			last = bvh.rightChild[last];
+		}
+		return bvh.firstTriangle[last] + bvh.triangleCount[last] - bvh.firstTriangle[node];
+	}
+
+	/**
+	 * @return `true` if every point inside the bounding box of the node is projected outside of the framebuffer or outside of the depth range.
+	 */
+	static boolean isOutside(BoundingVolumeHierarchy bvh, int node, Matrix4x4f m, float farPlane)
+	{
+		// Transform the box (center and half extents) to view space and get the axis-aligned bounds of the result.
+		float cx = (bvh.minX[node] + bvh.maxX[node]) / 2, cy = (bvh.minY[node] + bvh.maxY[node]) / 2, cz = (bvh.minZ[node] + bvh.maxZ[node]) / 2;
+		float ex = (bvh.maxX[node] - bvh.minX[node]) / 2, ey = (bvh.maxY[node] - bvh.minY[node]) / 2, ez = (bvh.maxZ[node] - bvh.minZ[node]) / 2;
+
+		float vx = (m.A11 * cx) + (m.A12 * cy) + (m.A13 * cz) + m.A14;
+		float vy = (m.A21 * cx) + (m.A22 * cy) + (m.A23 * cz) + m.A24;
+		float vz = (m.A31 * cx) + (m.A32 * cy) + (m.A33 * cz) + m.A34;
+		float rx = Math.abs(m.A11) * ex + Math.abs(m.A12) * ey + Math.abs(m.A13) * ez;
+		float ry = Math.abs(m.A21) * ex + Math.abs(m.A22) * ey + Math.abs(m.A23) * ez;
+		float rz = Math.abs(m.A31) * ex + Math.abs(m.A32) * ey + Math.abs(m.A33) * ez;
+		return isOutside(vx, vy, vz, rx, ry, rz, farPlane);
+	}
+
+	/**
+	 * @return `true` if every point inside the view-space box centered at `(vx, vy, vz)` with half extents `(rx, ry, rz)` is projected outside of the framebuffer or outside of the depth range.
+	 */
+	static boolean isOutside(float vx, float vy, float vz, float rx, float ry, float rz, float farPlane)
+	{
+		// Fragments are only kept between the near plane (0.1) and the far plane.
+		if (vz + rz <= 0.1f || vz - rz >= farPlane)
+		{
+			return true;
+		}
+		if (vz - rz <= 0)
+		{
+			// Parts of the box are behind the camera, where the projection is not defined.
+			return false;
+		}
+
+		// The projection divides X and Y by `log(Z + 1)`, so the visible half-width is at most `log(maxZ + 1)`.
+		// How far the box is from the center on its farthest side decides it; `log(maxZ + 1) <= maxZ` settles most boxes without the logarithm.
+		float distanceX = Math.abs(vx) - rx, distanceY = Math.abs(vy) - ry;
+		float distance = distanceX > distanceY ? distanceX : distanceY; // Not `Math.max`: its NaN handling makes it much slower here.
+		if (distance <= 0 || distance > vz + rz)
+		{
+			return distance > 0;
+		}
+		return distance > (float) Math.log(vz + rz + 1);
+	}
+}
+
+/**
+ * Rasterizes the triangles of a frame (already in framebuffer coordinates), either serially or split in screen tiles rendered in parallel.
+ * 
+ * Each tile draws its triangles in the original order, clipped to the tile bounds, so both paths produce exactly the same framebuffer.
+ */
+class SceneRasterizer
+{
+	static final int TILE_WIDTH = 32;
+	static final int TILE_HEIGHT = 16;
+
+	static final int LINE_COLOR = 0xffffff;
+	static final int VERTEX_COLOR = 0xff00ff;
+
+	Framebuffer framebuffer;
+	FragmentSink sink;
+	boolean showFaces, showLines, showVertices;
+	boolean earlyDepthTest;
+
+	// Triangles of the current frame.
+	VertexBuffer vertices;
+	int[] indices;
+	int[] triangles;
+	int triangleCount = 0;
+	boolean[] drawn = new boolean[0];
+	boolean[] rejected = new boolean[0];
+
+	// Edges shared by two visible triangles are only drawn once (see `drawsEdge`).
+	int[] neighbors = null;
+	int meshTriangleCount = 0;
+	int[] visibleFrame = new int[0]; // The last frame in which each triangle (of `indices`) was visible.
+	int frame = 0;
+
+	// Triangle indices binned per tile.
+	int tilesX, tilesY;
+	int[][] tileTriangles;
+	int[] tileTriangleCounts;
+	int[] tileRejectedBlocks;
+
+	// Overdraw avoided by the early depth test in the last frame: triangles that weren't rasterized at all, and blocks of pixels skipped (a block is counted once per triangle).
+	int rejectedTriangles = 0, rejectedBlocks = 0;
+
+	public SceneRasterizer(Framebuffer framebuffer, FragmentSink sink, boolean showLines, boolean showVertices)
+	{
+		this(framebuffer, sink, true, showLines, showVertices, true);
+	}
+
+	/**
+	 * @param showFaces Whether to fill the triangles (without it, only the enabled lines and vertices are drawn).
+	 * @param earlyDepthTest Whether to test whole blocks of pixels against the coarse depth buffer of `framebuffer` before rasterizing them.
+	 */
+	public SceneRasterizer(Framebuffer framebuffer, FragmentSink sink, boolean showFaces, boolean showLines, boolean showVertices, boolean earlyDepthTest)
+	{
+		this.framebuffer = framebuffer;
+		this.sink = sink;
+		this.showFaces = showFaces;
+		this.showLines = showLines;
+		this.showVertices = showVertices;
+		this.earlyDepthTest = earlyDepthTest;
+		updateTiles();
+	}
+
+	/**
+	 * Splits the framebuffer in tiles (again, if its size changed).
+	 */
+	void updateTiles()
+	{
+		int newTilesX = (framebuffer.bufferSize.X + TILE_WIDTH - 1) / TILE_WIDTH;
+		int newTilesY = (framebuffer.bufferSize.Y + TILE_HEIGHT - 1) / TILE_HEIGHT;
+		if (tileTriangles != null && newTilesX == tilesX && newTilesY == tilesY)
+		{
+			return;
+		}
+		tilesX = newTilesX;
+		tilesY = newTilesY;
+		tileTriangles = new int[tilesX * tilesY][16];
+		tileTriangleCounts = new int[tilesX * tilesY];
+		tileRejectedBlocks = new int[tilesX * tilesY];
+	}
+
+	/**
+	 * Sets the triangles to draw: every three `indices` index a triangle in `vertices`, and only the first `triangleCount` triangles listed in `triangles` are drawn (in that order).
+	 */
+	public void begin(VertexBuffer vertices, int[] indices, int[] triangles, int triangleCount)
+	{
+		this.vertices = vertices;
+		this.indices = indices;
+		this.triangles = triangles;
+		this.triangleCount = triangleCount;
+		updateTiles();
+		if (drawn.length < triangleCount)
+		{
+			drawn = new boolean[triangleCount];
+			rejected = new boolean[triangleCount];
+		}
+		Arrays.fill(drawn, false);
+		Arrays.fill(rejected, false);
+
+		frame++;
+		if (showLines)
+		{
+			if (visibleFrame.length < indices.length / 3)
+			{
+				visibleFrame = new int[indices.length / 3];
+			}
+			for (int t = 0; t < triangleCount; t++)
+			{
+				visibleFrame[triangles[t]] = frame;
+			}
+		}
+	}
+
+	/**
+	 * Sets the neighbors of the triangles of the mesh (see `Mesh.getNeighbors`), so edges shared by two visible triangles are only drawn once.
+	 * With instances, the triangles of `indices` repeat the `meshTriangleCount` triangles of the mesh (see `VertexBuffer.begin`).
+	 */
+	public void setNeighbors(int[] neighbors, int meshTriangleCount)
+	{
+		this.neighbors = neighbors;
+		this.meshTriangleCount = meshTriangleCount;
+	}
+
+	/**
+	 * @return `false` if `edge` of the triangle `triangle` (of `indices`) is shared with another visible triangle that draws it instead.
+	 */
+	boolean drawsEdge(int triangle, int edge)
+	{
+		if (neighbors == null)
+		{
+			return true;
+		}
+
+		int meshTriangle = triangle % meshTriangleCount;
+		int neighbor = neighbors[meshTriangle * 3 + edge];
+		if (neighbor < 0)
+		{
+			return true;
+		}
+
+		// The neighbor is a triangle of the same instance. When both are visible, the lowest one draws the edge.
+		neighbor += triangle - meshTriangle;
+		return visibleFrame[neighbor] != frame || triangle < neighbor;
+	}
+
+	/**
+	 * @return The number of triangles that produced at least one fragment.
+	 */
+	public int drawSerial()
+	{
+		// The whole framebuffer is drawn as if it was the first tile.
+		tileRejectedBlocks[0] = 0;
+		for (int t = 0; t < triangleCount; t++)
+		{
+			drawTriangle(t, 0, 0, framebuffer.bufferSize.X, framebuffer.bufferSize.Y, 0);
+		}
+		rejectedBlocks = tileRejectedBlocks[0];
+		return countDrawn();
+	}
+
+	/**
+	 * @return The number of triangles that produced at least one fragment.
+	 */
+	public int drawTiled(ForkJoinPool pool)
+	{
+		binTriangles();
+		pool.invoke(new TileTask(0, tileTriangleCounts.length));
+
+		rejectedBlocks = 0;
+		for (int tile = 0; tile < tileRejectedBlocks.length; tile++)
+		{
+			rejectedBlocks += tileRejectedBlocks[tile];
+		}
+		return countDrawn();
+	}
+
+	int countDrawn()
+	{
+		int count = 0;
+		rejectedTriangles = 0;
+		for (int t = 0; t < triangleCount; t++)
+		{
+			if (drawn[t])
+			{
+				count++;
+			}
+			else if (rejected[t])
+			{
+				rejectedTriangles++;
+			}
+		}
+		return count;
+	}
+
+	void binTriangles()
+	{
+		Arrays.fill(tileTriangleCounts, 0);
+		int width = framebuffer.bufferSize.X, height = framebuffer.bufferSize.Y;
+
+		for (int t = 0; t < triangleCount; t++)
+		{
+			int i = triangles[t] * 3;
+			int a = indices[i], b = indices[i + 1], c = indices[i + 2];
+			float[] x = vertices.x, y = vertices.y;
+
+			// Both the fill and the lines stay inside the bounding box of the vertices.
+			float minX = Math.min(Math.min(x[a], x[b]), x[c]);
+			float maxX = Math.max(Math.max(x[a], x[b]), x[c]);
+			float minY = Math.min(Math.min(y[a], y[b]), y[c]);
+			float maxY = Math.max(Math.max(y[a], y[b]), y[c]);
+
+			if (maxX >= 0 && minX < width && maxY >= 0 && minY < height)
+			{
+				int startTileX = Math.max(0, (int) minX) / TILE_WIDTH;
+				int endTileX = Math.min(width - 1, (int) Math.ceil(maxX)) / TILE_WIDTH;
+				int startTileY = Math.max(0, (int) minY) / TILE_HEIGHT;
+				int endTileY = Math.min(height - 1, (int) Math.ceil(maxY)) / TILE_HEIGHT;
+
+				for (int ty = startTileY; ty <= endTileY; ty++)
+				{
+					for (int tx = startTileX; tx <= endTileX; tx++)
+					{
+						addToTile(tx + (ty * tilesX), t);
+					}
+				}
+			}
+
+			// Vertices are set by address, so those outside of the framebuffer wrap around to other rows.
+			if (showVertices)
+			{
+				for (int v = 0; v < 3; v++)
+				{
+					int address = getVertexAddress(indices[i + v]);
+					if (address > 0 && address < framebuffer.pixelCount)
+					{
+						addToTile((address % width) / TILE_WIDTH + ((address / width) / TILE_HEIGHT) * tilesX, t);
+					}
+				}
+			}
+		}
+	}
+
+	void addToTile(int tile, int t)
+	{
+		int count = tileTriangleCounts[tile];
+		if (count > 0 && tileTriangles[tile][count - 1] == t) // Already binned.
+		{
+			return;
+		}
+		if (count == tileTriangles[tile].length)
+		{
+			tileTriangles[tile] = Arrays.copyOf(tileTriangles[tile], count * 2);
+		}
+		tileTriangles[tile][count] = t;
+		tileTriangleCounts[tile] = count + 1;
+	}
+
+	int getVertexAddress(int vertex)
+	{
+		float z = vertices.z[vertex];
+		if (z > 0.1f && z < framebuffer.farPlane) // TODO: Take near plane into account too.
+		{
+			return (int) vertices.x[vertex] + ((int) vertices.y[vertex] * framebuffer.bufferSize.X);
+		}
+		return -1;
+	}
+
+	void drawTile(int tile)
+	{
+		int minX = (tile % tilesX) * TILE_WIDTH;
+		int minY = (tile / tilesX) * TILE_HEIGHT;
+		int maxX = Math.min(minX + TILE_WIDTH, framebuffer.bufferSize.X);
+		int maxY = Math.min(minY + TILE_HEIGHT, framebuffer.bufferSize.Y);
+
+		int[] triangles = tileTriangles[tile];
+		tileRejectedBlocks[tile] = 0;
+		for (int i = 0; i < tileTriangleCounts[tile]; i++)
+		{
+			drawTriangle(triangles[i], minX, minY, maxX, maxY, tile);
+		}
+	}
+
+	/**
+	 * Draws a triangle (and its lines and vertices, if enabled) only inside the `[minX, maxX)×[minY, maxY)` rectangle.
+	 * @param tile The tile being drawn, where the blocks rejected by the early depth test are counted (see `tileRejectedBlocks`).
+	 */
+	void drawTriangle(int t, int minX, int minY, int maxX, int maxY, int tile)
+	{
+		int i = triangles[t] * 3;
+
+		if (showFaces)
+		{
+			int previouslyRejectedBlocks = tileRejectedBlocks[tile];
+			if (BasicShaders.face(vertices, indices[i], indices[i + 1], indices[i + 2], framebuffer.bufferSize, minX, minY, maxX, maxY,
+				earlyDepthTest ? framebuffer : null, tileRejectedBlocks, tile, sink) > 0)
+			{
+				drawn[t] = true;
+			}
+			else if (tileRejectedBlocks[tile] > previouslyRejectedBlocks)
+			{
+				rejected[t] = true;
+			}
+		}
+
+		// Draw triangle lines.
+		if (showLines)
+		{
+			for (int edge = 0; edge < 3; edge++)
+			{
+				if (drawsEdge(triangles[t], edge) &&
+					BasicShaders.line(vertices, indices[i + edge], indices[i + (edge + 1) % 3], framebuffer, minX, minY, maxX, maxY, LINE_COLOR) > 0)
+				{
+					drawn[t] = true;
+				}
+			}
+		}
+
+		// Draw triangle vertices.
+		if (showVertices)
+		{
+			int width = framebuffer.bufferSize.X;
+			for (int v = 0; v < 3; v++)
+			{
+				int address = getVertexAddress(indices[i + v]);
+				int x = address % width, y = address / width;
+				if (x >= minX && x < maxX && y >= minY && y < maxY)
+				{
+					framebuffer.safeSet(address, VERTEX_COLOR);
+				}
+			}
+		}
+	}
+
+	class TileTask extends RecursiveAction
+	{
+		private static final long serialVersionUID = 1L;
+
+		int from, to;
+
+		TileTask(int from, int to)
+		{
+			this.from = from;
+			this.to = to;
+		}
+
+		@Override
+		protected void compute()
+		{
+			if (to - from == 1)
+			{
+				drawTile(from);
+			}
+			else
+			{
+				int middle = (from + to) / 2;
+				invokeAll(new TileTask(from, middle), new TileTask(middle, to));
+			}
+		}
+	}
+}
+//#endregion
+
+enum ConsoleRenderMode
+{
+	// Single block character modes:
+	B0W1, // Black=0, white=1
+	B1W0, // Black=1, white=0
+	// Grayscale block characters modes:
+	GrayscaleChars, // This uses the shaded block Unicode characters without ANSI color escape codes.
+	// Single block character with ANSI/VT100 color codes:
+	RGB4, // This uses the standard and widely-supported 4-bit ANSI color escape codes (16 colors).
+	RGB8, // This uses the paletted 216-color version of the last one (216 colors).
+	RGB24, // This uses the 24-bit color version of the last one (16,777,216 colors).
+	// Sub-cell modes, where every cell shows a block of framebuffer pixels with a glyph and 24-bit foreground and background colors:
+	HalfBlock(1, 2), // Upper half block: the top pixel is the foreground color and the bottom one is the background color.
+	Quadrant(2, 2), // Quadrant blocks: 2×2 pixels, reduced to two colors.
+	Braille(2, 4); // Braille patterns: 2×4 pixels, reduced to two colors.
+
+	// Framebuffer pixels per cell, horizontally and vertically.
+	final int subPixelsX, subPixelsY;
+
+	ConsoleRenderMode()
+	{
+		this(1, 1);
+	}
+
+	ConsoleRenderMode(int subPixelsX, int subPixelsY)
+	{
+		this.subPixelsX = subPixelsX;
+		this.subPixelsY = subPixelsY;
+	}
+
+	/**
+	 * @return The size of the framebuffer needed to fill a grid of `cells`.
+	 */
+	public Vector2i getFramebufferSize(Vector2i cells)
+	{
+		return new Vector2i(cells.X * subPixelsX, cells.Y * subPixelsY);
+	}
+
+	/**
+	 * @return The height-to-width ratio of a pixel, relative to the one of a cell.
+	 */
+	public float getPixelAspectRatio()
+	{
+		return subPixelsX / (float) subPixelsY;
+	}
+}
+
+/**
+ * Ready-made byte sequences of the ANSI foreground color escape codes, built once at startup.
+ */
+class AnsiColorEscapes
+{
+	static final byte[] FG_RGB24_PREFIX = ConsoleFrameEncoder.ascii("\u001b[38;2;");
+
+	// 4-bit colors: 30-37 (index 0-7) and their bright variants 90-97 (index 8-15).
+	static final byte[][] RGB4 = new byte[16][];
+	// 8-bit paletted colors (0-255).
+	static final byte[][] RGB8 = new byte[256][];
+	// Decimal representation of every color component (0-255), used to compose 24-bit colors.
+	static final byte[][] DECIMALS = new byte[256][];
+
+	static
+	{
+		for (int i = 0; i < RGB4.length; i++)
+		{
+			RGB4[i] = ConsoleFrameEncoder.ascii("\u001b[" + getRgb4Code(i) + "m");
+		}
+		for (int i = 0; i < RGB8.length; i++)
+		{
+			RGB8[i] = ConsoleFrameEncoder.ascii("\u001b[38;5;" + i + "m");
+			DECIMALS[i] = ConsoleFrameEncoder.ascii(Integer.toString(i));
+		}
+	}
+
+	public static int getRgb4Code(int index)
+	{
+		return index < 8 ? 30 + index : 82 + index;
+	}
+
+	public static int getRgb4Index(int code)
+	{
+		return code < 90 ? code - 30 : code - 82;
+	}
+
+	public static int getRgb24Length(int rgb)
+	{
+		return FG_RGB24_PREFIX.length + DECIMALS[PackedRgb.red(rgb)].length + DECIMALS[PackedRgb.green(rgb)].length + DECIMALS[PackedRgb.blue(rgb)].length + 3;
+	}
+}
+
+/**
+ * Encodes a whole frame (escape codes and glyphs) into a reusable byte array, so it can be written to the standard output in a single call.
+ * 
+ * The framebuffer is first resolved into a grid of cells (a glyph plus a mode-specific color code each).
+ * The previous grid is kept around so that, in differential mode, only the cells that changed since the last frame are repainted.
+ */
+class ConsoleFrameEncoder
+{
+	// Glyphs are pre-encoded using the same charset `System.out` would use.
+	static final Charset OUTPUT_CHARSET = System.getProperty("sun.stdout.encoding") != null ?
+		Charset.forName(System.getProperty("sun.stdout.encoding")) :
+		Charset.defaultCharset();
+
+	static final int GLYPH_SPACE = 0;
+	static final int GLYPH_LIGHT_SHADE = 1;
+	static final int GLYPH_MEDIUM_SHADE = 2;
+	static final int GLYPH_DARK_SHADE = 3;
+	static final int GLYPH_FULL_BLOCK = 4;
+	static final int GLYPH_INFINITY = 5;
+	static final int GLYPH_QUADRANTS = 6; // 16 glyphs, indexed by the mask of filled quadrants (see `QUADRANT_CHARS`).
+	static final int GLYPH_UPPER_HALF_BLOCK = GLYPH_QUADRANTS + 0b0011;
+	static final int GLYPH_BRAILLE = GLYPH_QUADRANTS + 16; // 256 glyphs, indexed by the raised dots (see `BRAILLE_DOTS`).
+
+	// Quadrant block characters by mask: bit 0 is the top left quadrant, bit 1 the top right one, bit 2 the bottom left one and bit 3 the bottom right one.
+	static final String QUADRANT_CHARS = " \u2598\u259d\u2580\u2596\u258c\u259e\u259b\u2597\u259a\u2590\u259c\u2584\u2599\u259f\u2588";
+
+	// Bits of the quadrants and braille dots for every pixel of a cell, in row-major order.
+	static final int[] QUADRANT_BITS = { 0x01, 0x02, 0x04, 0x08 };
+	static final int[] BRAILLE_DOTS = { 0x01, 0x08, 0x02, 0x10, 0x04, 0x20, 0x40, 0x80 };
+
+	static final byte[][] GLYPHS = buildGlyphs(OUTPUT_CHARSET);
+
+	// Color code of the cells that don't change the foreground color.
+	static final int NO_COLOR = -1;
+
+	static final byte[] NEXT_LINE = ThreeDee.IsWindows ? ascii("\n") : ascii("\u001b[1E"); // Move to the beginning of the next line.
+	static final byte[] CSI = ascii("\u001b[");
+	static final byte[] CLEAR_SCREEN = ascii("\u001b[2J");
+	static final byte[] FG_DEFAULT = ascii("\u001b[39m");
+	static final byte[] BG_DEFAULT = ascii("\u001b[49m");
+	static final byte[] FG_RGB24_PARAMETERS = ascii("38;2;");
+	static final byte[] BG_RGB24_PARAMETERS = ascii("48;2;");
+
+	// Worst case for a single cell: an escape code with RGB24 foreground and background colors (three 3-digit components each) followed by a glyph.
+	static final int MAX_CELL_SIZE = AnsiColorEscapes.FG_RGB24_PREFIX.length + 12 + BG_RGB24_PARAMETERS.length + 12 + 4;
+
+	// If more than this fraction of cells changed, a full repaint is cheaper than positioning the cursor for every run.
+	static final float DIFFERENTIAL_REPAINT_THRESHOLD = 0.5f;
+
+	byte[] buffer;
+	int length = 0;
+
+	WritableByteChannel channel;
+	byte[][] glyphs;
+
+	// Cell grids: the one being encoded (back) and the one currently shown by the terminal (front).
+	// The arrays may be larger than `columns * rows` after shrinking the grid.
+	int columns, rows;
+	int[] backGlyphs, backColors, backBackgrounds;
+	int[] frontGlyphs, frontColors, frontBackgrounds;
+	ConsoleRenderMode cellMode;
+	int currentColor, currentBackground;
+
+	// Number of bytes that differential output avoided writing in the last frame.
+	int bytesSaved = 0;
+
+	// Set after resizing, so the next frame starts from a blank screen (and nothing of the previous size is left behind).
+	boolean clearScreen = false;
+
+	public ConsoleFrameEncoder(int columns, int rows, WritableByteChannel out)
+	{
+		this(columns, rows, out, OUTPUT_CHARSET);
+	}
+
+	/**
+	 * @param charset The charset of the glyphs (the one of the standard output, unless the frames are written somewhere else).
+	 */
+	public ConsoleFrameEncoder(int columns, int rows, WritableByteChannel out, Charset charset)
+	{
+		glyphs = charset.equals(OUTPUT_CHARSET) ? GLYPHS : buildGlyphs(charset);
+		buffer = new byte[0];
+		channel = out;
+
+		backGlyphs = new int[0];
+		resize(columns, rows);
+		clearScreen = false;
+	}
+
+	/**
+	 * Changes the size of the cell grids. The arrays are only reallocated when they are too small.
+	 * The next frame clears the screen and repaints every cell.
+	 */
+	public void resize(int columns, int rows)
+	{
+		this.columns = columns;
+		this.rows = rows;
+
+		int cellCount = columns * rows;
+		if (backGlyphs.length < cellCount)
+		{
+			backGlyphs = new int[cellCount];
+			backColors = new int[cellCount];
+			backBackgrounds = new int[cellCount];
+			frontGlyphs = new int[cellCount];
+			frontColors = new int[cellCount];
+			frontBackgrounds = new int[cellCount];
+		}
+		Arrays.fill(backBackgrounds, NO_COLOR);
+		Arrays.fill(frontBackgrounds, NO_COLOR);
+		Arrays.fill(frontGlyphs, -1); // Nothing has been painted yet.
+
+		ensureCapacity((columns * MAX_CELL_SIZE + NEXT_LINE.length) * rows + 1024);
+		clearScreen = true;
+	}
+
+	static byte[][] buildGlyphs(Charset charset)
+	{
+		byte[][] glyphs = new byte[GLYPH_BRAILLE + 256][];
+		glyphs[GLYPH_SPACE] = encode(' ', charset);
+		glyphs[GLYPH_LIGHT_SHADE] = encode('\u2591', charset);
+		glyphs[GLYPH_MEDIUM_SHADE] = encode('\u2592', charset);
+		glyphs[GLYPH_DARK_SHADE] = encode('\u2593', charset);
+		glyphs[GLYPH_FULL_BLOCK] = encode('\u2588', charset);
+		glyphs[GLYPH_INFINITY] = encode('\u221e', charset);
+		for (int i = 0; i < 16; i++)
+		{
+			glyphs[GLYPH_QUADRANTS + i] = encode(QUADRANT_CHARS.charAt(i), charset);
+		}
+		for (int i = 0; i < 256; i++)
+		{
+			glyphs[GLYPH_BRAILLE + i] = encode((char) (0x2800 + i), charset);
+		}
+		return glyphs;
+	}
+
+	static byte[] encode(char c, Charset charset)
+	{
+		return String.valueOf(c).getBytes(charset);
+	}
+
+	static byte[] ascii(String s)
+	{
+		return s.getBytes(StandardCharsets.US_ASCII);
+	}
+
+	static int getShadeGlyph(char c)
+	{
+		switch (c)
+		{
+			case '\u2591':
+				return GLYPH_LIGHT_SHADE;
+			case '\u2592':
+				return GLYPH_MEDIUM_SHADE;
+			case '\u2593':
+				return GLYPH_DARK_SHADE;
+			case '\u2588':
+				return GLYPH_FULL_BLOCK;
+			case '\u221e':
+				return GLYPH_INFINITY;
+			default:
+				return GLYPH_SPACE;
+		}
+	}
+
+	static int getDecimalLength(int value)
+	{
+		int digits = 1;
+		for (int v = value; v >= 10; v /= 10)
+		{
+			digits++;
+		}
+		return digits;
+	}
+
+	public void reset()
+	{
+		length = 0;
+	}
+
+	void ensureCapacity(int extra)
+	{
+		if (length + extra > buffer.length)
+		{
+			buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, length + extra));
+		}
+	}
+
+	public void put(byte b)
+	{
+		ensureCapacity(1);
+		buffer[length++] = b;
+	}
+
+	public void put(byte[] bytes)
+	{
+		ensureCapacity(bytes.length);
+		System.arraycopy(bytes, 0, buffer, length, bytes.length);
+		length += bytes.length;
+	}
+
+	public void putDecimal(int value)
+	{
+		ensureCapacity(11);
+		if (value < 0)
+		{
+			buffer[length++] = '-';
+			value = -value;
+		}
+
+		// Count the digits first so they can be written from left to right.
+		int digits = getDecimalLength(value);
+		for (int i = length + digits - 1; i >= length; i--)
+		{
+			buffer[i] = (byte) ('0' + (value % 10));
+			value /= 10;
+		}
+		length += digits;
+	}
+
+	public void putCursorPosition(int x, int y)
+	{
+		put(CSI);
+		putDecimal(y + 1);
+		put((byte) ';');
+		putDecimal(x + 1);
+		put((byte) 'H');
+	}
+
+	int getCursorPositionLength(int x, int y)
+	{
+		return CSI.length + getDecimalLength(y + 1) + 1 + getDecimalLength(x + 1) + 1;
+	}
+
+	public void putCursorForward(int n)
+	{
+		put(CSI);
+		putDecimal(n);
+		put((byte) 'C');
+	}
+
+	int getCursorForwardLength(int n)
+	{
+		return CSI.length + getDecimalLength(n) + 1;
+	}
+
+	public void putFgRgb24(int rgb)
+	{
+		put(AnsiColorEscapes.FG_RGB24_PREFIX);
+		put(AnsiColorEscapes.DECIMALS[PackedRgb.red(rgb)]);
+		put((byte) ';');
+		put(AnsiColorEscapes.DECIMALS[PackedRgb.green(rgb)]);
+		put((byte) ';');
+		put(AnsiColorEscapes.DECIMALS[PackedRgb.blue(rgb)]);
+		put((byte) 'm');
+	}
+
+	void putColor(int color)
+	{
+		switch (cellMode)
+		{
+			case RGB4:
+				put(AnsiColorEscapes.RGB4[AnsiColorEscapes.getRgb4Index(color)]);
+				break;
+
+			case RGB8:
+				put(AnsiColorEscapes.RGB8[color]);
+				break;
+
+			case RGB24:
+			case HalfBlock:
+			case Quadrant:
+			case Braille:
+				putFgRgb24(color);
+				break;
+
+			default:
+				break;
+		}
+	}
+
+	int getColorLength(int color)
+	{
+		switch (cellMode)
+		{
+			case RGB4:
+				return AnsiColorEscapes.RGB4[AnsiColorEscapes.getRgb4Index(color)].length;
+
+			case RGB8:
+				return AnsiColorEscapes.RGB8[color].length;
+
+			case RGB24:
+			case HalfBlock:
+			case Quadrant:
+			case Braille:
+				return AnsiColorEscapes.getRgb24Length(color);
+
+			default:
+				return 0;
+		}
+	}
+
+	/**
+	 * Appends the background color and, if it changed as well, the foreground color in a single escape code (RGB24 only).
+	 */
+	void putColors(int color, int background)
+	{
+		put(CSI);
+		if (color != NO_COLOR)
+		{
+			put(FG_RGB24_PARAMETERS);
+			put(AnsiColorEscapes.DECIMALS[PackedRgb.red(color)]);
+			put((byte) ';');
+			put(AnsiColorEscapes.DECIMALS[PackedRgb.green(color)]);
+			put((byte) ';');
+			put(AnsiColorEscapes.DECIMALS[PackedRgb.blue(color)]);
+			put((byte) ';');
+		}
+		put(BG_RGB24_PARAMETERS);
+		put(AnsiColorEscapes.DECIMALS[PackedRgb.red(background)]);
+		put((byte) ';');
+		put(AnsiColorEscapes.DECIMALS[PackedRgb.green(background)]);
+		put((byte) ';');
+		put(AnsiColorEscapes.DECIMALS[PackedRgb.blue(background)]);
+		put((byte) 'm');
+	}
+
+	/**
+	 * @return The size of the escape codes `putCell` would append before the glyph of the cell at `index`, with the specified current colors.
+	 */
+	int getCellColorsLength(int index, int color, int background)
+	{
+		boolean colorChanged = backColors[index] != NO_COLOR && backColors[index] != color;
+		if (backBackgrounds[index] != NO_COLOR && backBackgrounds[index] != background)
+		{
+			// Both colors share the same escape code, so one CSI less.
+			return AnsiColorEscapes.getRgb24Length(backBackgrounds[index]) + (colorChanged ? AnsiColorEscapes.getRgb24Length(backColors[index]) - CSI.length : 0);
+		}
+		return colorChanged ? getColorLength(backColors[index]) : 0;
+	}
+
+	void putCell(int index)
+	{
+		int color = backColors[index], background = backBackgrounds[index];
+		boolean colorChanged = color != NO_COLOR && color != currentColor;
+		if (background != NO_COLOR && background != currentBackground)
+		{
+			putColors(colorChanged ? color : NO_COLOR, background);
+			currentBackground = background;
+		}
+		else if (colorChanged)
+		{
+			putColor(color);
+		}
+		if (colorChanged)
+		{
+			currentColor = color;
+		}
+		put(glyphs[backGlyphs[index]]);
+	}
+
+	boolean isCellChanged(int index)
+	{
+		return backGlyphs[index] != frontGlyphs[index] || backColors[index] != frontColors[index] || backBackgrounds[index] != frontBackgrounds[index];
+	}
+
+	/**
+	 * Sets the default background color again if a cell changed it, so it doesn't leak into what is written after the cells.
+	 */
+	void putDefaultBackground()
+	{
+		if (currentBackground != NO_COLOR)
+		{
+			put(BG_DEFAULT);
+			currentBackground = NO_COLOR;
+		}
+	}
+
+	/**
+	 * Resolves the framebuffer into the back cell grid and appends it (except the last row and column) using the specified render mode.
+	 * @return `false` if the render mode is not supported by this encoder.
+	 */
+	public boolean encodeFramebuffer(Framebuffer framebuffer, ConsoleRenderMode mode, boolean differential)
+	{
+		if (!resolveCells(framebuffer, mode))
+		{
+			return false;
+		}
+
+		if (clearScreen)
+		{
+			put(CLEAR_SCREEN);
+			clearScreen = false;
+		}
+
+		// Modes without colors use the default foreground color, so the status line color doesn't leak into the cells.
+		if (mode == ConsoleRenderMode.B0W1 || mode == ConsoleRenderMode.B1W0 || mode == ConsoleRenderMode.GrayscaleChars)
+		{
+			put(FG_DEFAULT);
+		}
+
+		int changedCells = 0;
+		for (int y = 0; y < rows - 1; y++)
+		{
+			for (int x = 0; x < columns - 1; x++)
+			{
+				if (isCellChanged(x + (y * columns)))
+				{
+					changedCells++;
+				}
+			}
+		}
+
+		if (differential && changedCells <= (columns - 1) * (rows - 1) * DIFFERENTIAL_REPAINT_THRESHOLD)
+		{
+			int start = length;
+			putChangedCells();
+			bytesSaved = measureFullRepaint() - (length - start);
+		}
+		else
+		{
+			putAllCells();
+			bytesSaved = 0;
+		}
+
+		// The back grid is now what the terminal shows.
+		int[] swap = frontGlyphs;
+		frontGlyphs = backGlyphs;
+		backGlyphs = swap;
+		swap = frontColors;
+		frontColors = backColors;
+		backColors = swap;
+		swap = frontBackgrounds;
+		frontBackgrounds = backBackgrounds;
+		backBackgrounds = swap;
+
+		return true;
+	}
+
+	boolean resolveCells(Framebuffer framebuffer, ConsoleRenderMode mode)
+	{
+		cellMode = mode;
+		int cellCount = columns * rows;
+
+		switch (mode)
+		{
+			case B0W1:
+			case B1W0:
+				for (int i = 0; i < cellCount; i++)
+				{
+					int value = framebuffer.get(i);
+					boolean isWhite = PackedRgb.average(value) > 127;
+
+					backGlyphs[i] = (isWhite ^ mode == ConsoleRenderMode.B1W0) ? GLYPH_FULL_BLOCK : GLYPH_SPACE;
+					backColors[i] = NO_COLOR;
+				}
+				return true;
+
+			case GrayscaleChars:
+				for (int i = 0; i < cellCount; i++)
+				{
+					int value = framebuffer.get(i);
+					backGlyphs[i] = getShadeGlyph(ThreeDee.getShadeCharFromFloat(PackedRgb.average(value) / 256.0f));
+					backColors[i] = NO_COLOR;
+				}
+				return true;
+
+			case RGB4:
+				for (int i = 0; i < cellCount; i++)
+				{
+					int value = framebuffer.get(i);
+					boolean isBright = PackedRgb.average(value) > 127;
+					int threshold = isBright ? 192 : 64; // 0 - 64 - 128 - 192 - 256
+					int ansiColorCode = isBright ? 90 : 30;
+					if (PackedRgb.red(value) > threshold)
+						ansiColorCode += 1;
+					if (PackedRgb.green(value) > threshold)
+						ansiColorCode += 2;
+					if (PackedRgb.blue(value) > threshold)
+						ansiColorCode += 4;
+
+					backGlyphs[i] = GLYPH_FULL_BLOCK;
+					backColors[i] = ansiColorCode;
+				}
+				return true;
+
+			case RGB8:
+				for (int i = 0; i < cellCount; i++)
+				{
+					int value = framebuffer.get(i);
+					int r = Math.min((int) ((PackedRgb.red(value) / 256.0f) * 6), 5) * 36;
+					int g = Math.min((int) ((PackedRgb.green(value) / 256.0f) * 6), 5) * 6;
+					int b = Math.min((int) ((PackedRgb.blue(value) / 256.0f) * 6), 5);
+
+					backGlyphs[i] = GLYPH_FULL_BLOCK;
+					backColors[i] = 16 + r + g + b;
+				}
+				return true;
+
+			case RGB24:
+				for (int i = 0; i < cellCount; i++)
+				{
+					int value = framebuffer.get(i);
+					backGlyphs[i] = GLYPH_FULL_BLOCK;
+					backColors[i] = value;
+				}
+				return true;
+
+			case HalfBlock:
+				resolveHalfBlockCells(framebuffer);
+				return true;
+
+			case Quadrant:
+				resolveTwoColorCells(framebuffer, 2, 2, QUADRANT_BITS, GLYPH_QUADRANTS);
+				return true;
+
+			case Braille:
+				resolveTwoColorCells(framebuffer, 2, 4, BRAILLE_DOTS, GLYPH_BRAILLE);
+				return true;
+
+			default:
+				return false;
+		}
+	}
+
+	void resolveHalfBlockCells(Framebuffer framebuffer)
+	{
+		int stride = framebuffer.bufferSize.X;
+		for (int y = 0; y < rows; y++)
+		{
+			for (int x = 0; x < columns; x++)
+			{
+				int i = x + (y * columns);
+				int top = framebuffer.get(x + (y * 2 * stride));
+				int bottom = framebuffer.get(x + ((y * 2 + 1) * stride));
+
+				// A full block doesn't need a background color, and keeps the current one for the next cells.
+				backGlyphs[i] = top == bottom ? GLYPH_FULL_BLOCK : GLYPH_UPPER_HALF_BLOCK;
+				backColors[i] = top;
+				backBackgrounds[i] = top == bottom ? NO_COLOR : bottom;
+			}
+		}
+	}
+
+	/**
+	 * Reduces every `cellWidth`×`cellHeight` block of pixels to two colors: the pixels brighter than the average of the block are drawn with the foreground color (the average of their colors), and the rest with the background color.
+	 * @param bits The glyph bit of every pixel of a block, in row-major order.
+	 * @param glyphBase The glyph of the cell is `glyphBase` plus the bits of its foreground pixels.
+	 */
+	void resolveTwoColorCells(Framebuffer framebuffer, int cellWidth, int cellHeight, int[] bits, int glyphBase)
+	{
+		int stride = framebuffer.bufferSize.X;
+		int pixelsPerCell = cellWidth * cellHeight;
+		for (int y = 0; y < rows; y++)
+		{
+			for (int x = 0; x < columns; x++)
+			{
+				int i = x + (y * columns);
+				int first = (x * cellWidth) + (y * cellHeight * stride);
+
+				int brightnessSum = 0;
+				for (int py = 0; py < cellHeight; py++)
+				{
+					for (int px = 0; px < cellWidth; px++)
+					{
+						brightnessSum += PackedRgb.average(framebuffer.get(first + px + (py * stride)));
+					}
+				}
+
+				int mask = 0, foregroundCount = 0;
+				int fgRed = 0, fgGreen = 0, fgBlue = 0, bgRed = 0, bgGreen = 0, bgBlue = 0;
+				for (int py = 0, k = 0; py < cellHeight; py++)
+				{
+					for (int px = 0; px < cellWidth; px++, k++)
+					{
+						int value = framebuffer.get(first + px + (py * stride));
+						if (PackedRgb.average(value) * pixelsPerCell > brightnessSum)
+						{
+							mask |= bits[k];
+							foregroundCount++;
+							fgRed += PackedRgb.red(value);
+							fgGreen += PackedRgb.green(value);
+							fgBlue += PackedRgb.blue(value);
+						}
+						else
+						{
+							bgRed += PackedRgb.red(value);
+							bgGreen += PackedRgb.green(value);
+							bgBlue += PackedRgb.blue(value);
+						}
+					}
+				}
+
+				int backgroundCount = pixelsPerCell - foregroundCount;
+				int background = PackedRgb.pack(bgRed / backgroundCount, bgGreen / backgroundCount, bgBlue / backgroundCount);
+				if (mask == 0)
+				{
+					// All the pixels are equally bright: paint the whole cell with a single color.
+					// A full block only needs a foreground color, but the glyphs that don't cover the cell (braille) need the background color instead.
+					boolean coversCell = glyphBase == GLYPH_QUADRANTS;
+					backGlyphs[i] = coversCell ? GLYPH_FULL_BLOCK : GLYPH_SPACE;
+					backColors[i] = coversCell ? background : NO_COLOR;
+					backBackgrounds[i] = coversCell ? NO_COLOR : background;
+				}
+				else
+				{
+					backGlyphs[i] = glyphBase + mask;
+					backColors[i] = PackedRgb.pack(fgRed / foregroundCount, fgGreen / foregroundCount, fgBlue / foregroundCount);
+					backBackgrounds[i] = background;
+				}
+			}
+		}
+	}
+
+	void putAllCells()
+	{
+		putCursorPosition(0, 0);
+		currentColor = NO_COLOR;
+		currentBackground = NO_COLOR;
+
+		for (int y = 0; y < rows - 1; y++)
+		{
+			for (int x = 0; x < columns - 1; x++)
+			{
+				putCell(x + (y * columns));
+			}
+			put(NEXT_LINE);
+		}
+		putDefaultBackground();
+	}
+
+	/**
+	 * Appends only the runs of cells that differ from the front grid.
+	 * Unchanged cells between two runs in the same row are repainted instead of skipped when that takes fewer bytes than moving the cursor.
+	 */
+	void putChangedCells()
+	{
+		currentColor = NO_COLOR;
+		currentBackground = NO_COLOR;
+		int cursorX = -1, cursorY = -1;
+
+		for (int y = 0; y < rows - 1; y++)
+		{
+			for (int x = 0; x < columns - 1; x++)
+			{
+				int i = x + (y * columns);
+				if (!isCellChanged(i))
+				{
+					continue;
+				}
+
+				if (cursorY != y)
+				{
+					putCursorPosition(x, y);
+				}
+				else if (cursorX != x)
+				{
+					// Measure what it takes to repaint the gap, as the color changes in it count too.
+					int gapLength = 0, gapColor = currentColor, gapBackground = currentBackground;
+					for (int j = cursorX + (y * columns); j < i; j++)
+					{
+						gapLength += getCellColorsLength(j, gapColor, gapBackground) + glyphs[backGlyphs[j]].length;
+						gapColor = backColors[j] != NO_COLOR ? backColors[j] : gapColor;
+						gapBackground = backBackgrounds[j] != NO_COLOR ? backBackgrounds[j] : gapBackground;
+					}
+
+					if (gapLength <= getCursorForwardLength(x - cursorX))
+					{
+						for (int j = cursorX + (y * columns); j < i; j++)
+						{
+							putCell(j);
+						}
+					}
+					else
+					{
+						putCursorForward(x - cursorX);
+					}
+				}
+
+				putCell(i);
+				cursorX = x + 1;
+				cursorY = y;
+			}
+		}
+		putDefaultBackground();
+	}
+
+	int measureFullRepaint()
+	{
+		int size = getCursorPositionLength(0, 0) + NEXT_LINE.length * (rows - 1);
+		int color = NO_COLOR, background = NO_COLOR;
+
+		for (int y = 0; y < rows - 1; y++)
+		{
+			for (int x = 0; x < columns - 1; x++)
+			{
+				int i = x + (y * columns);
+				size += getCellColorsLength(i, color, background) + glyphs[backGlyphs[i]].length;
+				color = backColors[i] != NO_COLOR ? backColors[i] : color;
+				background = backBackgrounds[i] != NO_COLOR ? backBackgrounds[i] : background;
+			}
+		}
+
+		return size + (background != NO_COLOR ? BG_DEFAULT.length : 0);
+	}
+
+	/**
+	 * Writes everything that has been encoded so far to the output channel and resets the encoder.
+	 */
+	public void flush() throws IOException
+	{
+		ByteBuffer bb = ByteBuffer.wrap(buffer, 0, length);
+		while (bb.hasRemaining())
+		{
+			channel.write(bb);
+		}
+		reset();
+	}
+}
+
+enum OffscreenOutputFormat
+{
+	None,	// Frames are rendered and discarded.
+	ANSI,	// The escape codes that would be written to the console.
+	RGB,	// Raw 24-bit pixels (red, green and blue bytes), top to bottom, one frame after another.
+	PNG,	// One image per frame.
+}
+
+/**
+ * Writes the frames rendered in headless mode to a file (or to the standard output if the path is `-`).
+ */
+class OffscreenFrameWriter
+{
+	OffscreenOutputFormat format;
+	String path;
+	int width, height;
+	ConsoleRenderMode mode;
+
+	WritableByteChannel channel;
+	ConsoleFrameEncoder encoder;
+	ByteBuffer pixels;
+	BufferedImage image;
+
+	long bytesWritten = 0;
+
+	/**
+	 * @param width The width of the framebuffer (in pixels). ANSI output has a cell for every `mode.subPixelsX` pixels.
+	 * @param height The height of the framebuffer (in pixels). ANSI output has a cell for every `mode.subPixelsY` pixels.
+	 */
+	public OffscreenFrameWriter(OffscreenOutputFormat format, String path, int width, int height, ConsoleRenderMode mode) throws IOException
+	{
+		this.format = format;
+		this.path = path;
+		this.width = width;
+		this.height = height;
+		this.mode = mode;
+
+		if (format == OffscreenOutputFormat.ANSI || format == OffscreenOutputFormat.RGB)
+		{
+			channel = path.equals("-") ?
+				new FileOutputStream(FileDescriptor.out).getChannel() :
+				FileChannel.open(new File(path).toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+		}
+
+		switch (format)
+		{
+			case ANSI:
+				encoder = new ConsoleFrameEncoder(width / mode.subPixelsX, height / mode.subPixelsY, channel);
+				break;
+
+			case RGB:
+				pixels = ByteBuffer.allocateDirect(width * height * 3);
+				break;
+
+			case PNG:
+				image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+				break;
+
+			default:
+				break;
+		}
+	}
+
+	/**
+	 * Infers the output format from the extension of `path`: `.png`, `.rgb` or `.raw` (raw pixels); anything else is written as ANSI.
+	 */
+	public static OffscreenOutputFormat getFormatFromPath(String path)
+	{
+		String lowerCasePath = path.toLowerCase();
+		if (lowerCasePath.endsWith(".png"))
+		{
+			return OffscreenOutputFormat.PNG;
+		}
+		else if (lowerCasePath.endsWith(".rgb") || lowerCasePath.endsWith(".raw"))
+		{
+			return OffscreenOutputFormat.RGB;
+		}
+		return OffscreenOutputFormat.ANSI;
+	}
+
+	/**
+	 * @return `false` if the render mode cannot be encoded (ANSI output only).
+	 */
+	public boolean write(Framebuffer framebuffer, int frame, boolean differential) throws IOException
+	{
+		switch (format)
+		{
+			case ANSI:
+				if (!encoder.encodeFramebuffer(framebuffer, mode, differential))
+				{
+					return false;
+				}
+				bytesWritten += encoder.length;
+				encoder.flush();
+				break;
+
+			case RGB:
+				pixels.clear();
+				for (int i = 0; i < width * height; i++)
+				{
+					int value = framebuffer.buffer[i];
+					pixels.put((byte) PackedRgb.red(value));
+					pixels.put((byte) PackedRgb.green(value));
+					pixels.put((byte) PackedRgb.blue(value));
+				}
+				pixels.flip();
+				bytesWritten += pixels.remaining();
+				while (pixels.hasRemaining())
+				{
+					channel.write(pixels);
+				}
+				break;
+
+			case PNG:
+				// A path like `frame%04d.png` writes every frame to its own file. Otherwise, each frame replaces the previous one.
+				File file = new File(path.contains("%") ? String.format(path, frame) : path);
+				image.setRGB(0, 0, width, height, framebuffer.buffer, 0, width);
+				ImageIO.write(image, "png", file);
+				bytesWritten += file.length();
+				break;
+
+			default:
+				break;
+		}
+		return true;
+	}
+
+	public void close() throws IOException
+	{
+		if (channel != null && !path.equals("-"))
+		{
+			channel.close();
+		}
+	}
+}
+
+enum FrameStage
+{
+	Input,		// Polling the keyboard.
+	Clear,		// Clearing the framebuffer.
+	Transform,	// Transforming and projecting the vertices.
+	Cull,		// Culling triangles.
+	Rasterize,	// Drawing the triangles to the framebuffer.
+	Encode,		// Encoding the framebuffer (and the status line) as escape codes.
+	Output,		// Writing the encoded frame.
+}
+
+/**
+ * JDK Flight Recorder event committed for every stage of every frame.
+ * Record them with `java -XX:StartFlightRecording=filename=frames.jfr ThreeDee`, and read them with `jfr print --events ThreeDee.FrameStage frames.jfr`.
+ */
+@Name("ThreeDee.FrameStage")
+@Label("Frame Stage")
+@Category("ThreeDee")
+@StackTrace(false)
+class FrameStageEvent extends Event
+{
+	@Label("Frame")
+	int frame;
+
+	@Label("Stage")
+	String stage;
+}
+
+/**
+ * Histogram of durations (in nanoseconds) with a relative error of 1/16.
+ * Every power of two is split in 16 buckets, so recording a value is constant time and the memory usage doesn't depend on the number of values.
+ */
+class LatencyHistogram
+{
+	static final int SUB_BUCKET_BITS = 4;
+	static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+	long[] buckets = new long[(64 - SUB_BUCKET_BITS + 1) * SUB_BUCKETS];
+	long count = 0, sum = 0, max = 0;
+
+	public void record(long nanos)
+	{
+		nanos = Math.max(nanos, 0);
+		buckets[getBucket(nanos)]++;
+		count++;
+		sum += nanos;
+		max = Math.max(max, nanos);
+	}
+
+	static int getBucket(long value)
+	{
+		if (value < SUB_BUCKETS)
+		{
+			return (int) value;
+		}
+		int exponent = 63 - Long.numberOfLeadingZeros(value);
+		int subBucket = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+		return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket;
+	}
+
+	/**
+	 * @return The highest value that falls in `bucket`.
+	 */
+	static long getBucketLimit(int bucket)
+	{
+		if (bucket < SUB_BUCKETS)
+		{
+			return bucket;
+		}
+		int exponent = bucket / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+		long subBucket = bucket % SUB_BUCKETS;
+		return ((SUB_BUCKETS + subBucket + 1) << (exponent - SUB_BUCKET_BITS)) - 1;
+	}
+
+	/**
+	 * @param percentile Between 0 and 100.
+	 */
+	public long getPercentile(double percentile)
+	{
+		long rank = (long) Math.ceil(count * percentile / 100);
+		long seen = 0;
+		for (int i = 0; i < buckets.length; i++)
+		{
+			seen += buckets[i];
+			if (seen >= rank && seen > 0)
+			{
+				return Math.min(getBucketLimit(i), max);
+			}
+		}
+		return max;
+	}
+
+	public long getMean()
+	{
+		return count > 0 ? sum / count : 0;
+	}
+}
+
+/**
+ * Durations of every stage of every frame (see `FrameStage`): kept in histograms and averaged every second (for the status line).
+ * Each stage must always be recorded from the same thread (its histogram is not synchronized), but the per-second totals may be recorded from any thread.
+ */
+class FrameStatistics
+{
+	LatencyHistogram[] stages = new LatencyHistogram[FrameStage.values().length];
+	LatencyHistogram frames = new LatencyHistogram();
 
-		Vector3f[] ret = new Vector3f[list.size()];
-		list.toArray(ret);
-		return ret;
+	// Averages of the last second, in microseconds.
+	// The totals are atomic: in the pipelined main loop, stages and frames are recorded by other threads than the one that ends the second.
+	AtomicLongArray secondNanos = new AtomicLongArray(stages.length);
+	AtomicInteger secondFrames = new AtomicInteger();
+	int[] averageMicros = new int[stages.length];
+
+	// Totals of the early depth test (see `SceneRasterizer.earlyDepthTest`).
+	long rejectedTriangles = 0, rejectedBlocks = 0;
+	int earlyDepthTestFrames = 0;
+
+	public FrameStatistics()
+	{
+		for (int i = 0; i < stages.length; i++)
+		{
+			stages[i] = new LatencyHistogram();
+		}
 	}
 
-	static float edgeFunction(Vector3f a, Vector3f b, Vector3f c)
+	public void recordStage(FrameStage stage, long nanos)
 	{
-		return edgeFunction(a.toVector2f(), b.toVector2f(), c.toVector2f());
+		stages[stage.ordinal()].record(nanos);
+		secondNanos.addAndGet(stage.ordinal(), nanos);
 	}
-	
-	static float edgeFunction(Vector2f a, Vector2f b, Vector2f c)
+
+	/**
+	 * @param nanos Time from the beginning of the frame until it was written.
+	 */
+	public void recordFrame(long nanos)
+	{
+		frames.record(nanos);
+		secondFrames.incrementAndGet();
+	}
+
+	public void recordEarlyDepthTest(int triangles, int blocks)
+	{
+		rejectedTriangles += triangles;
+		rejectedBlocks += blocks;
+		earlyDepthTestFrames++;
+	}
+
+	/**
+	 * Updates the per-second averages.
+	 */
+	public void endSecond()
+	{
+		int frameCount = secondFrames.getAndSet(0);
+		for (int i = 0; i < stages.length; i++)
+		{
+			long nanos = secondNanos.getAndSet(i, 0);
+			averageMicros[i] = frameCount > 0 ? (int) (nanos / frameCount / 1000) : 0;
+		}
+	}
+
+	public String getSummary()
+	{
+		StringBuilder builder = new StringBuilder();
+		builder.append(String.format("%-10s %8s %9s %9s %9s %9s %9s%n", "Stage (ms)", "Frames", "Mean", "p50", "p90", "p99", "Max"));
+		for (FrameStage stage : FrameStage.values())
+		{
+			appendSummaryRow(builder, stage.name(), stages[stage.ordinal()]);
+		}
+		appendSummaryRow(builder, "Frame", frames);
+		if (rejectedBlocks > 0)
+		{
+			builder.append(String.format("Early depth test rejected %.1f triangles and %.1f blocks of pixels per frame%n",
+				rejectedTriangles / (double) earlyDepthTestFrames, rejectedBlocks / (double) earlyDepthTestFrames));
+		}
+		return builder.toString();
+	}
+
+	static void appendSummaryRow(StringBuilder builder, String name, LatencyHistogram histogram)
+	{
+		builder.append(String.format("%-10s %8d %9.3f %9.3f %9.3f %9.3f %9.3f%n", name, histogram.count,
+			histogram.getMean() / 1e6, histogram.getPercentile(50) / 1e6, histogram.getPercentile(90) / 1e6,
+			histogram.getPercentile(99) / 1e6, histogram.max / 1e6));
+	}
+}
+
+/**
+ * Measures the stages of the frames handled by one thread, records them in `FrameStatistics` and commits them as Flight Recorder events.
+ */
+class FrameTimer
+{
+	FrameStatistics statistics;
+
+	int frame;
+	long frameStart, stageStart;
+	FrameStageEvent event;
+
+	public FrameTimer(FrameStatistics statistics)
+	{
+		this.statistics = statistics;
+		beginFrame(0);
+	}
+
+	public void beginFrame(int frame)
+	{
+		this.frame = frame;
+		frameStart = stageStart = System.nanoTime();
+		event = new FrameStageEvent();
+		event.begin();
+	}
+
+	/**
+	 * Records the time since the previous stage (or the beginning of the frame) as the duration of `stage`.
+	 */
+	public void endStage(FrameStage stage)
+	{
+		long now = System.nanoTime();
+		statistics.recordStage(stage, now - stageStart);
+		stageStart = now;
+
+		event.end();
+		if (event.shouldCommit())
+		{
+			event.frame = frame;
+			event.stage = stage.name();
+			event.commit();
+		}
+		event = new FrameStageEvent();
+		event.begin();
+	}
+
+	public void endFrame()
+	{
+		statistics.recordFrame(System.nanoTime() - frameStart);
+	}
+}
+
+/**
+ * Chooses the resolution the scene is drawn at, so frames take about as long as the target frame rate allows.
+ * The result is then scaled up to the size of the terminal (see `upscale`).
+ * 
+ * The scale only changes when the average frame time leaves a band around the target, and never twice in a row within a few frames, so it doesn't oscillate.
+ */
+class ResolutionScaler
+{
+	static final float MIN_SCALE = 0.25f;
+	static final float SCALE_STEP = 0.05f;
+	// Frames slower than `target * SLOW_THRESHOLD` lower the scale; frames faster than `target * FAST_THRESHOLD` raise it.
+	static final float SLOW_THRESHOLD = 1.1f;
+	static final float FAST_THRESHOLD = 0.75f;
+	static final int FRAMES_BETWEEN_CHANGES = 10;
+
+	long targetFrameNanos;
+	volatile float scale = 1.0f;
+	float averageFrameNanos = 0;
+	int framesSinceChange = 0;
+
+	public ResolutionScaler(float targetFps)
+	{
+		targetFrameNanos = (long) (1e9 / targetFps);
+	}
+
+	/**
+	 * @param frameNanos How long the last frame took.
+	 */
+	public void update(long frameNanos)
+	{
+		averageFrameNanos = averageFrameNanos == 0 ? frameNanos : averageFrameNanos * 0.9f + frameNanos * 0.1f;
+		if (++framesSinceChange < FRAMES_BETWEEN_CHANGES)
+		{
+			return;
+		}
+
+		float ratio = averageFrameNanos / targetFrameNanos;
+		float newScale = scale;
+		if (ratio > SLOW_THRESHOLD)
+		{
+			// The cost of a frame grows with the number of pixels (the square of the scale). Don't drop more than half at once.
+			newScale = scale * (float) Math.max(0.5, Math.sqrt(1 / ratio));
+		}
+		else if (ratio < FAST_THRESHOLD)
+		{
+			// Go back up slowly (only one step at a time).
+			newScale = scale + SCALE_STEP;
+		}
+		newScale = Math.round(Math.max(MIN_SCALE, Math.min(newScale, 1.0f)) / SCALE_STEP) * SCALE_STEP;
+
+		if (Math.abs(newScale - scale) > SCALE_STEP / 2)
+		{
+			scale = newScale;
+			framesSinceChange = 0;
+			averageFrameNanos = 0; // Measure the new resolution from scratch.
+		}
+	}
+
+	public Vector2i getSize(Vector2i outputSize)
+	{
+		float currentScale = scale;
+		return new Vector2i(Math.max(1, Math.round(outputSize.X * currentScale)), Math.max(1, Math.round(outputSize.Y * currentScale)));
+	}
+
+	public int getPercentage()
+	{
+		return Math.round(scale * 100);
+	}
+
+	/**
+	 * Copies `source` to `destination` with nearest-neighbor scaling (colors only).
+	 */
+	public static void upscale(Framebuffer source, Framebuffer destination)
+	{
+		int sourceWidth = source.bufferSize.X, sourceHeight = source.bufferSize.Y;
+		int width = destination.bufferSize.X, height = destination.bufferSize.Y;
+		if (sourceWidth == width && sourceHeight == height)
+		{
+			System.arraycopy(source.buffer, 0, destination.buffer, 0, width * height);
+			return;
+		}
+
+		for (int y = 0; y < height; y++)
+		{
+			int sourceRow = (y * sourceHeight / height) * sourceWidth;
+			int row = y * width;
+			for (int x = 0; x < width; x++)
+			{
+				destination.buffer[row + x] = source.buffer[sourceRow + x * sourceWidth / width];
+			}
+		}
+	}
+}
+
+/**
+ * A frame of the pipelined main loop (see `ThreeDee.runPipelined`): its own framebuffer and rasterizer, and what the status line shows about it.
+ */
+class PipelinedFrame
+{
+	Framebuffer framebuffer;
+	SceneRasterizer sceneRasterizer;
+
+	int frame, triangles, backFacing, offScreen, rejectedTriangles, rejectedBlocks;
+	long startTimestamp;
+	Vector2i terminalSize; // The terminal size the frame was drawn for.
+
+	public PipelinedFrame(Vector2i size, Texture texture)
+	{
+		framebuffer = new Framebuffer(size.X, size.Y, 0x000000);
+		sceneRasterizer = new SceneRasterizer(framebuffer, new TexturedFragmentSink(framebuffer, texture), !ThreeDee.wireframe, ThreeDee.showLines, ThreeDee.showVertices,
+			ThreeDee.earlyDepthTest);
+	}
+}
+
+/**
+ * Triple buffer between a producer and a consumer that always gets the latest item.
+ * 
+ * The producer publishes an item and gets another one back to fill; the consumer gives back the item it's done with and gets the latest one.
+ * If the producer publishes again before the consumer takes the previous item, that item is dropped (and reused).
+ */
+class LatestFrameExchange<T>
+{
+	T middle;
+	boolean fresh = false, closed = false;
+	int dropped = 0;
+
+	public LatestFrameExchange(T middle)
+	{
+		this.middle = middle;
+	}
+
+	public synchronized T publish(T item)
+	{
+		T free = middle;
+		middle = item;
+		if (fresh)
+		{
+			dropped++;
+		}
+		fresh = true;
+		notifyAll();
+		return free;
+	}
+
+	/**
+	 * Waits for an item that hasn't been taken yet.
+	 * @return `null` if the exchange is closed and there are no more items.
+	 */
+	public synchronized T take(T done) throws InterruptedException
+	{
+		while (!fresh && !closed)
+		{
+			wait();
+		}
+		if (!fresh)
+		{
+			return null;
+		}
+		T latest = middle;
+		middle = done;
+		fresh = false;
+		return latest;
+	}
+
+	public synchronized void close()
+	{
+		closed = true;
+		notifyAll();
+	}
+
+	public synchronized int getDropped()
+	{
+		return dropped;
+	}
+}
+
+/**
+ * Escape codes of a frame, waiting to be written.
+ */
+class EncodedFrame
+{
+	byte[] bytes = new byte[0];
+	int length = 0;
+	int frame;
+	long startTimestamp;
+
+	public void copyFrom(ConsoleFrameEncoder encoder, int frame, long startTimestamp)
+	{
+		if (bytes.length < encoder.length)
+		{
+			bytes = new byte[encoder.buffer.length];
+		}
+		System.arraycopy(encoder.buffer, 0, bytes, 0, encoder.length);
+		length = encoder.length;
+		this.frame = frame;
+		this.startTimestamp = startTimestamp;
+	}
+
+	public void writeTo(WritableByteChannel channel) throws IOException
+	{
+		ByteBuffer bb = ByteBuffer.wrap(bytes, 0, length);
+		while (bb.hasRemaining())
+		{
+			channel.write(bb);
+		}
+	}
+}
+
+/**
+ * A render mode that at least one viewer of `FrameBroadcastServer` is using: its encoder and the latest frame encoded with it.
+ */
+class BroadcastMode
+{
+	ConsoleRenderMode mode;
+	ConsoleFrameEncoder encoder;
+	Framebuffer framebuffer; // The frame at the size this mode needs (only used when it's not the size the scene was drawn at).
+	BroadcastFrame latest;
+	ArrayDeque<BroadcastFrame> freeFrames = new ArrayDeque<BroadcastFrame>();
+	int viewers = 0;
+
+	public BroadcastMode(ConsoleRenderMode mode, Vector2i cells)
+	{
+		this.mode = mode;
+		encoder = new ConsoleFrameEncoder(cells.X, cells.Y, null, StandardCharsets.UTF_8); // Viewers don't share the console of the server.
+		Vector2i size = mode.getFramebufferSize(cells);
+		framebuffer = new Framebuffer(size.X, size.Y, 0x000000);
+	}
+
+	/**
+	 * Makes the escape codes in the encoder the latest frame of this mode. The previous one is reused once no viewer is writing it.
+	 */
+	public void publish(int frame)
+	{
+		BroadcastFrame encoded = freeFrames.isEmpty() ? new BroadcastFrame(this) : freeFrames.poll();
+		encoded.copyFrom(encoder, frame, 0);
+		encoded.users = 1;
+		if (latest != null)
+		{
+			release(latest);
+		}
+		latest = encoded;
+		encoder.reset();
+	}
+
+	public void release(BroadcastFrame encoded)
+	{
+		if (--encoded.users == 0)
+		{
+			freeFrames.add(encoded);
+		}
+	}
+}
+
+/**
+ * An encoded frame shared by every viewer of a render mode. It counts the viewers that are still writing it (plus one while it's the latest frame of its mode).
+ */
+class BroadcastFrame extends EncodedFrame
+{
+	BroadcastMode mode;
+	int users = 0;
+
+	public BroadcastFrame(BroadcastMode mode)
+	{
+		this.mode = mode;
+	}
+}
+
+/**
+ * A client of `FrameBroadcastServer`, and the part of a frame that hasn't been written to it yet.
+ */
+class BroadcastViewer
+{
+	static final int INPUT_BUFFER_SIZE = 64;
+	// Without a limit, the OS would take seconds of frames for a slow viewer before the server notices; this keeps it a few frames behind at most.
+	static final int SEND_BUFFER_SIZE = 64 * 1024;
+
+	SocketChannel channel;
+	SelectionKey key;
+	BroadcastMode mode;
+	ByteBuffer input = ByteBuffer.allocate(INPUT_BUFFER_SIZE);
+
+	// Gathering write of the frame being sent, preceded by a clear screen escape code after connecting or changing the render mode.
+	ByteBuffer[] pending = new ByteBuffer[2];
+	BroadcastFrame frame; // `null` when the viewer is waiting for the next frame.
+	boolean clearScreen = true;
+	int lastFrame = -1;
+	int framesSent = 0, framesDropped = 0;
+
+	public BroadcastViewer(SocketChannel channel, BroadcastMode mode)
+	{
+		this.channel = channel;
+		this.mode = mode;
+	}
+}
+
+/**
+ * Streams frames that are drawn once to any number of TCP viewers on the loopback interface (e.g. `nc 127.0.0.1 <port>` in a terminal).
+ * 
+ * Every frame is encoded once per render mode in use, no matter how many viewers share it.
+ * Everything runs on the rendering thread with non-blocking sockets: a viewer that is still writing a frame when the next one is ready skips it and gets the latest one as soon as it's done, so slow viewers never stall the renderer or the other viewers.
+ * Viewers can change their render mode by sending its name followed by a new line (e.g. `Braille`).
+ */
+class FrameBroadcastServer
+{
+	static final byte[] STATUS_VIEWERS = ConsoleFrameEncoder.ascii(" viewers");
+
+	Selector selector;
+	ServerSocketChannel serverChannel;
+	Vector2i cells;
+	ConsoleRenderMode defaultMode;
+	PrintStream log;
+
+	BroadcastMode[] modes = new BroadcastMode[ConsoleRenderMode.values().length];
+	ArrayList<BroadcastViewer> viewers = new ArrayList<BroadcastViewer>();
+
+	/**
+	 * @param port The TCP port to listen to (0 picks a free one).
+	 * @param cells The size of the frames, in characters.
+	 * @param defaultMode The render mode of the viewers that haven't chosen one.
+	 */
+	public FrameBroadcastServer(int port, Vector2i cells, ConsoleRenderMode defaultMode, PrintStream log) throws IOException
+	{
+		this.cells = cells;
+		this.defaultMode = defaultMode;
+		this.log = log;
+
+		selector = Selector.open();
+		serverChannel = ServerSocketChannel.open();
+		serverChannel.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+		serverChannel.configureBlocking(false);
+		serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+	}
+
+	public int getPort() throws IOException
+	{
+		return ((InetSocketAddress) serverChannel.getLocalAddress()).getPort();
+	}
+
+	BroadcastMode getMode(ConsoleRenderMode mode)
+	{
+		if (modes[mode.ordinal()] == null)
+		{
+			modes[mode.ordinal()] = new BroadcastMode(mode, cells);
+		}
+		return modes[mode.ordinal()];
+	}
+
+	/**
+	 * @return The render mode in use with the most pixels per cell (which has at least as many pixels per cell as the others, in both directions), or the default one if there are no viewers.
+	 * The scene is drawn for it, so every mode gets all the detail it can show.
+	 */
+	public ConsoleRenderMode getDrawingMode()
+	{
+		ConsoleRenderMode drawingMode = null;
+		for (BroadcastMode mode : modes)
+		{
+			if (mode != null && mode.viewers > 0 &&
+				(drawingMode == null || mode.mode.subPixelsX * mode.mode.subPixelsY > drawingMode.subPixelsX * drawingMode.subPixelsY))
+			{
+				drawingMode = mode.mode;
+			}
+		}
+		return drawingMode != null ? drawingMode : defaultMode;
+	}
+
+	/**
+	 * Encodes the framebuffer once for every render mode in use, and starts writing it to the viewers that aren't busy with a previous frame.
+	 */
+	public void broadcast(Framebuffer framebuffer, int frame)
+	{
+		for (BroadcastMode mode : modes)
+		{
+			if (mode == null || mode.viewers == 0)
+			{
+				continue;
+			}
+
+			// The scene is drawn for the mode with the most pixels per cell (see `getDrawingMode`); the others get it scaled down.
+			Framebuffer source = framebuffer;
+			if (!mode.framebuffer.bufferSize.equals(framebuffer.bufferSize))
+			{
+				ResolutionScaler.upscale(framebuffer, mode.framebuffer);
+				source = mode.framebuffer;
+			}
+			if (!mode.encoder.encodeFramebuffer(source, mode.mode, false))
+			{
+				mode.encoder.putCursorPosition(2, cells.Y / 2);
+				mode.encoder.put(ConsoleFrameEncoder.ascii("Render mode not supported: " + mode.mode));
+			}
+			mode.encoder.putCursorPosition(0, cells.Y - 1);
+			mode.encoder.putFgRgb24(0xffffff);
+			mode.encoder.put(ThreeDee.STATUS_FRAME);
+			mode.encoder.putDecimal(frame);
+			mode.encoder.put(ThreeDee.STATUS_SEPARATOR);
+			mode.encoder.putDecimal(viewers.size());
+			mode.encoder.put(STATUS_VIEWERS);
+			mode.publish(frame);
+		}
+
+		for (int i = viewers.size() - 1; i >= 0; i--)
+		{
+			BroadcastViewer viewer = viewers.get(i);
+			if (viewer.frame != null)
+			{
+				viewer.framesDropped++;
+			}
+			else
+			{
+				try
+				{
+					send(viewer);
+				}
+				catch (IOException ex)
+				{
+					close(viewer);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Accepts viewers, reads their commands and writes the pending frames until `deadline` (a `System.nanoTime` timestamp).
+	 * If there are no viewers, waits for one regardless of the deadline (there's no point in drawing frames nobody sees).
+	 */
+	public void serve(long deadline) throws IOException
+	{
+		while (true)
+		{
+			long timeoutMillis = (deadline - System.nanoTime()) / 1000000;
+			if (viewers.isEmpty())
+			{
+				selector.select();
+			}
+			else if (timeoutMillis > 0)
+			{
+				selector.select(timeoutMillis);
+			}
+			else
+			{
+				selector.selectNow();
+			}
+
+			Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+			while (keys.hasNext())
+			{
+				SelectionKey key = keys.next();
+				keys.remove();
+				if (!key.isValid())
+				{
+					continue;
+				}
+				if (key.isAcceptable())
+				{
+					accept();
+					continue;
+				}
+
+				BroadcastViewer viewer = (BroadcastViewer) key.attachment();
+				try
+				{
+					if (key.isReadable())
+					{
+						read(viewer);
+					}
+					if (key.isValid() && key.isWritable())
+					{
+						send(viewer);
+					}
+				}
+				catch (IOException ex)
+				{
+					close(viewer);
+				}
+			}
+
+			if (!viewers.isEmpty() && System.nanoTime() >= deadline)
+			{
+				return;
+			}
+		}
+	}
+
+	void accept() throws IOException
 	{
-		return ((c.X - a.X) * (b.Y - a.Y) - (c.Y - a.Y) * (b.X - a.X));
+		SocketChannel channel = serverChannel.accept();
+		if (channel == null)
+		{
+			return;
+		}
+		channel.configureBlocking(false);
+		channel.setOption(StandardSocketOptions.SO_SNDBUF, BroadcastViewer.SEND_BUFFER_SIZE);
+		BroadcastViewer viewer = new BroadcastViewer(channel, getMode(defaultMode));
+		viewer.key = channel.register(selector, SelectionKey.OP_READ, viewer);
+		viewer.mode.viewers++;
+		viewers.add(viewer);
+		log.printf("Viewer connected from %s (%d viewers)%n", channel.getRemoteAddress(), viewers.size());
 	}
 
-	// TODO: Should this be a framebuffer method?
-	// TODO: Use `XYZUV` as inputs.
-	// TODO: This should discard fragments outside of the bounds of the Z buffer.
-	static XYZUV[] face(Vector3f a, Vector3f b, Vector3f c, Vector2f aUv, Vector2f bUv, Vector2f cUv, Vector2i framebufferSize)
+	void close(BroadcastViewer viewer)
 	{
-		float startX = Math.min(Math.min(a.X, b.X), Math.min(c.X, framebufferSize.X));
-		float endX = Math.max(Math.max(a.X, b.X), Math.max(c.X, 0));
-		float startY = Math.min(Math.min(a.Y, b.Y), Math.min(c.Y, framebufferSize.Y));
-		float endY = Math.max(Math.max(a.Y, b.Y), Math.max(c.Y, 0));
-		float startZ = Math.min(Math.min(a.Z, b.Z), Math.min(c.Z, Float.MAX_VALUE));
-		float endZ = Math.max(Math.max(a.Z, b.Z), Math.max(c.Z, 0));
-
-		// Check if:
-		//   1. The triangle is behind the camera or too far away.
-		//   2. The triangle is outside of the bounds of the framebuffer.
-		// If one or both of them is true, do not render the triangle; return an empty fragment array.
-		if ((endZ < 0.01f || startZ > 100.0f) ||
-			((endX < 0 || startX > framebufferSize.X) && (endY < 0 || startY > framebufferSize.Y)))
+		if (viewer.frame != null)
+		{
+			viewer.frame.mode.release(viewer.frame);
+			viewer.frame = null;
+		}
+		viewer.mode.viewers--;
+		viewer.key.cancel();
+		try
 		{
-			return new XYZUV[] {};
+			viewer.channel.close();
 		}
+		catch (IOException ex)
+		{
+			// The viewer is gone anyway.
+		}
+		viewers.remove(viewer);
+		log.printf("Viewer disconnected after %d frames (%d dropped, %d viewers left)%n", viewer.framesSent, viewer.framesDropped, viewers.size());
+	}
 
-		List<XYZUV> list = new ArrayList<XYZUV>();
-		
-		float area = edgeFunction(a, b, c);
+	/**
+	 * Reads the names of the render modes the viewer asks for, one per line. Unknown names are ignored.
+	 */
+	void read(BroadcastViewer viewer) throws IOException
+	{
+		if (viewer.channel.read(viewer.input) < 0)
+		{
+			close(viewer);
+			return;
+		}
 
-		for (int y = (int) Math.max(0, startY); y < Math.min(framebufferSize.Y, endY); y++)
+		ByteBuffer input = viewer.input;
+		int lineStart = 0;
+		for (int i = 0; i < input.position(); i++)
 		{
-			for (int x = (int) Math.max(0, startX); x < Math.min(framebufferSize.X, endX); x++)
+			if (input.get(i) != '\n')
 			{
-				Vector3f framebufferPoint = new Vector3f(x, y, 0);
-				float w0 = edgeFunction(a, b, framebufferPoint);
-				float w1 = edgeFunction(b, c, framebufferPoint);
-				float w2 = edgeFunction(c, a, framebufferPoint);
-
-				// If `framebufferPoint` is inside the triangle (between `a`, `b` and `c`).
-				if (w0 >= 0 && w1 >= 0 && w2 >= 0)
+				continue;
+			}
+			String name = new String(input.array(), lineStart, i - lineStart, StandardCharsets.US_ASCII).trim();
+			lineStart = i + 1;
+			for (ConsoleRenderMode mode : ConsoleRenderMode.values())
+			{
+				if (mode.name().equalsIgnoreCase(name) && mode != viewer.mode.mode)
 				{
-					w0 /= area;
-					w1 /= area;
-					w2 /= area;
+					viewer.mode.viewers--;
+					viewer.mode = getMode(mode);
+					viewer.mode.viewers++;
+					viewer.clearScreen = true;
+					viewer.lastFrame = -1; // Frame numbers of different modes can match.
+				}
+			}
+		}
 
-					float z = w0 * c.Z + w1 * a.Z + w2 * b.Z;
-					float u = w0 * cUv.X + w1 * aUv.X + w2 * bUv.X;
-					float v = w0 * cUv.Y + w1 * aUv.Y + w2 * bUv.Y;
+		// Keep the incomplete line (unless it doesn't fit, which means it's not a render mode anyway).
+		input.flip();
+		input.position(lineStart);
+		input.compact();
+		if (!input.hasRemaining())
+		{
+			input.clear();
+		}
+	}
 
-					list.add(new XYZUV(new Vector3f(x, y, z), new Vector2f(u, v)));
+	/**
+	 * Writes as much of the current frame as the socket takes without blocking, and then moves on to the latest frame of the viewer's render mode (if it wasn't sent yet).
+	 */
+	void send(BroadcastViewer viewer) throws IOException
+	{
+		while (true)
+		{
+			if (viewer.frame == null)
+			{
+				BroadcastFrame latest = viewer.mode.latest;
+				if (latest == null || latest.frame == viewer.lastFrame)
+				{
+					// Wait for the next frame.
+					viewer.key.interestOps(SelectionKey.OP_READ);
+					return;
 				}
+				latest.users++;
+				viewer.frame = latest;
+				viewer.pending[0] = ByteBuffer.wrap(ConsoleFrameEncoder.CLEAR_SCREEN, 0, viewer.clearScreen ? ConsoleFrameEncoder.CLEAR_SCREEN.length : 0);
+				viewer.pending[1] = ByteBuffer.wrap(latest.bytes, 0, latest.length);
+				viewer.clearScreen = false;
+			}
+
+			viewer.channel.write(viewer.pending);
+			if (viewer.pending[1].hasRemaining())
+			{
+				// The socket buffer is full: go on when it has room again.
+				viewer.key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+				return;
 			}
+
+			viewer.lastFrame = viewer.frame.frame;
+			viewer.framesSent++;
+			viewer.frame.mode.release(viewer.frame); // The viewer may have changed its render mode in the meantime.
+			viewer.frame = null;
 		}
-		
-		XYZUV[] ret = new XYZUV[list.size()];
-		list.toArray(ret);
-		return ret;
 	}
 }
-//#endregion
 
-class XYZUV
+/**
+ * Immutable snapshot of what the user controls: the camera position, whether the program should keep running and the size of the terminal.
+ */
+final class ControlState
 {
-	public Vector3f XYZ;
-	public Vector2f UV;
+	static final ControlState INITIAL = new ControlState(0.0f, 0.0f, -1.5f, false, null);
+
+	final float cameraX, cameraY, cameraZ;
+	final boolean quit;
+	final Vector2i terminalSize; // The last size reported by the terminal (`null` until the first report).
+
+	public ControlState(float cameraX, float cameraY, float cameraZ, boolean quit, Vector2i terminalSize)
+	{
+		this.cameraX = cameraX;
+		this.cameraY = cameraY;
+		this.cameraZ = cameraZ;
+		this.quit = quit;
+		this.terminalSize = terminalSize;
+	}
+
+	public ControlState move(float x, float y, float z)
+	{
+		return new ControlState(cameraX + x, cameraY + y, cameraZ + z, quit, terminalSize);
+	}
+
+	public ControlState withQuit()
+	{
+		return new ControlState(cameraX, cameraY, cameraZ, true, terminalSize);
+	}
 
-	public XYZUV(Vector3f xyz, Vector2f uv)
+	public ControlState withTerminalSize(Vector2i size)
 	{
-		XYZ = xyz;
-		UV = uv;
+		return new ControlState(cameraX, cameraY, cameraZ, quit, size);
 	}
 }
 
-enum ConsoleRenderMode
+/**
+ * Reads the keyboard in its own thread and publishes the resulting `ControlState`.
+ * 
+ * The thread blocks until some input arrives, then handles everything that is pending at once (so held keys don't queue up behind the frame rate) and publishes a single snapshot.
+ * Escape sequences may be split across reads, so the parser keeps its state between them.
+ * The answers to the terminal size queries (see `ThreeDee.TERMINAL_SIZE_QUERY`) arrive mixed with the keys, so they are handled here too.
+ */
+class InputReader implements Runnable
 {
-	// Single block character modes:
-	B0W1, // Black=0, white=1
-	B1W0, // Black=1, white=0
-	// Grayscale block characters modes:
-	GrayscaleChars, // This uses the shaded block Unicode characters without ANSI color escape codes.
-	// Single block character with ANSI/VT100 color codes:
-	RGB4, // This uses the standard and widely-supported 4-bit ANSI color escape codes (16 colors).
-	RGB8, // This uses the paletted 216-color version of the last one (216 colors).
-	RGB24, // This uses the 24-bit color version of the last one (16,777,216 colors).
+	static final float MOVEMENT_STEP = 0.5f;
+
+	static final int STATE_GROUND = 0;
+	static final int STATE_ESCAPE = 1; // After ESC.
+	static final int STATE_CSI = 2; // After ESC [ (or ESC O, which is what some terminals send for the arrow keys).
+
+	static final int MAX_PARAMETERS = 4;
+
+	InputStream in;
+	AtomicReference<ControlState> state = new AtomicReference<ControlState>(ControlState.INITIAL);
+	ControlState current = ControlState.INITIAL; // Only used by the reader thread.
+
+	int parserState = STATE_GROUND;
+	int[] parameters = new int[MAX_PARAMETERS];
+	int parameterCount = 0;
+
+	public InputReader(InputStream in)
+	{
+		this.in = in;
+	}
+
+	/**
+	 * Starts reading in a daemon thread (a blocked read must not keep the program alive after quitting).
+	 */
+	public void start()
+	{
+		Thread thread = new Thread(this, "Input");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	public ControlState getState()
+	{
+		return state.get();
+	}
+
+	@Override
+	public void run()
+	{
+		byte[] buffer = new byte[256];
+		try
+		{
+			int count;
+			while ((count = in.read(buffer)) > 0)
+			{
+				for (int i = 0; i < count; i++)
+				{
+					accept(buffer[i]);
+				}
+				state.set(current);
+			}
+		}
+		catch (IOException ex)
+		{
+			System.err.println("Cannot process user input: " + ex.getMessage());
+		}
+	}
+
+	void accept(byte b)
+	{
+		switch (parserState)
+		{
+			case STATE_GROUND:
+				if (b == 0x1b)
+				{
+					parserState = STATE_ESCAPE;
+				}
+				else
+				{
+					handleKey((char) b);
+				}
+				break;
+
+			case STATE_ESCAPE:
+				if (b == '[' || b == 'O')
+				{
+					parserState = STATE_CSI;
+					parameterCount = 0;
+					parameters[0] = 0;
+				}
+				else
+				{
+					// Not a sequence that we know: take the byte as a key press (Alt + key, for example).
+					parserState = STATE_GROUND;
+					accept(b);
+				}
+				break;
+
+			case STATE_CSI:
+				if (b >= '0' && b <= '9')
+				{
+					parameterCount = Math.max(parameterCount, 1);
+					if (parameterCount <= MAX_PARAMETERS)
+					{
+						parameters[parameterCount - 1] = parameters[parameterCount - 1] * 10 + (b - '0');
+					}
+				}
+				else if (b == ';')
+				{
+					parameterCount = Math.max(parameterCount, 1) + 1;
+					if (parameterCount <= MAX_PARAMETERS)
+					{
+						parameters[parameterCount - 1] = 0;
+					}
+				}
+				else if (b >= 0x40 && b <= 0x7e)
+				{
+					// Final byte: the sequence is complete.
+					parserState = STATE_GROUND;
+					handleSequence((char) b);
+				}
+				break;
+
+			default:
+				break;
+		}
+	}
+
+	void handleSequence(char command)
+	{
+		switch (command)
+		{
+			case 'R': // Cursor position report: rows and columns (in that order).
+				if (parameterCount == 2 && parameters[0] > 1 && parameters[1] > 1)
+				{
+					Vector2i size = new Vector2i(parameters[1], parameters[0]);
+					if (!size.equals(current.terminalSize))
+					{
+						current = current.withTerminalSize(size);
+					}
+				}
+				break;
+
+			case 'A': // Up arrow.
+				handleKey('w');
+				break;
+
+			case 'B': // Down arrow.
+				handleKey('s');
+				break;
+
+			case 'C': // Right arrow.
+				handleKey('d');
+				break;
+
+			case 'D': // Left arrow.
+				handleKey('a');
+				break;
+
+			default:
+				break;
+		}
+	}
+
+	void handleKey(char key)
+	{
+		switch (key)
+		{
+			case 'q':
+				current = current.withQuit();
+				break;
+
+			case 'w':
+				current = current.move(0, 0, MOVEMENT_STEP);
+				break;
+
+			case 'W':
+				current = current.move(0, 0, MOVEMENT_STEP * 5);
+				break;
+
+			case 's':
+				current = current.move(0, 0, -MOVEMENT_STEP);
+				break;
+
+			case 'S':
+				current = current.move(0, 0, -MOVEMENT_STEP * 5);
+				break;
+
+			case 'a':
+				current = current.move(-MOVEMENT_STEP, 0, 0);
+				break;
+
+			case 'd':
+				current = current.move(MOVEMENT_STEP, 0, 0);
+				break;
+
+			case 'z':
+				current = current.move(0, -MOVEMENT_STEP, 0);
+				break;
+
+			case 'x':
+				current = current.move(0, MOVEMENT_STEP, 0);
+				break;
+		}
+	}
 }
 
 class WindowsInterop
@@ -689,16 +5394,81 @@ class WindowsInterop
 class ThreeDee
 {
 	static String textureFile = null;
+	static String modelFile = null;
 	static boolean showLines = false;
+	static boolean wireframe = false;
 	static boolean showVertices = false;
+	static boolean differentialOutput = false;
+	static int renderThreads = 1;
+	static boolean showStats = false;
+	static boolean pipelined = false;
+	static ResolutionScaler resolutionScaler = null;
+	static boolean mipmaps = true;
+	static boolean earlyDepthTest = true;
+	static boolean sortFrontToBack = false;
+	static int instanceCount = 1;
+	static final float INSTANCE_SPACING = 1.5f;
+	static boolean useTextureCache = true;
+	static boolean clearTextureCache = false;
+	static long textureCacheMegabytes = 256;
 	static ConsoleRenderMode consoleRenderMode = ConsoleRenderMode.RGB24;
 
-	static Framebuffer<Vector3i> framebuffer;
+	// Headless (offscreen) mode.
+	static boolean headless = false;
+	static Vector2i headlessSize = new Vector2i(80, 25);
+	static int headlessFrames = 100;
+	static String outputFile = null;
+	static OffscreenOutputFormat outputFormat = null;
+
+	// Server mode (see `FrameBroadcastServer`).
+	static int serverPort = -1;
+	static float serverFps = 30.0f;
+
+	static Framebuffer framebuffer;
+	static Framebuffer displayFramebuffer; // Terminal-sized copy of `framebuffer` when drawing at a lower resolution (see `ResolutionScaler`).
+	static ConsoleFrameEncoder frameEncoder;
+
+	// Pre-encoded status line fragments.
+	static final byte[] STATUS_FRAME = ConsoleFrameEncoder.ascii("\u001b[K  Frame ");
+	static final byte[] STATUS_SEPARATOR = ConsoleFrameEncoder.ascii(" | ");
+	static final byte[] STATUS_FPS = ConsoleFrameEncoder.ascii(" FPS | ");
+	static final byte[] STATUS_TRIANGLES = ConsoleFrameEncoder.ascii(" triangles");
+	static final byte[] STATUS_BACK_FACING = ConsoleFrameEncoder.ascii(" back-facing, ");
+	static final byte[] STATUS_OFF_SCREEN = ConsoleFrameEncoder.ascii(" off-screen");
+	static final byte[] STATUS_BYTES_SAVED = ConsoleFrameEncoder.ascii(" bytes saved");
+	static final byte[][] STATUS_STAGES = new byte[][]
+	{
+		ConsoleFrameEncoder.ascii(" | in "),
+		ConsoleFrameEncoder.ascii(" clr "),
+		ConsoleFrameEncoder.ascii(" xf "),
+		ConsoleFrameEncoder.ascii(" cull "),
+		ConsoleFrameEncoder.ascii(" ras "),
+		ConsoleFrameEncoder.ascii(" enc "),
+		ConsoleFrameEncoder.ascii(" out "),
+	};
+	static final byte[] STATUS_PIPELINE_DEPTH = ConsoleFrameEncoder.ascii(" in flight, ");
+	static final byte[] STATUS_DROPPED = ConsoleFrameEncoder.ascii(" dropped");
+	static final byte[] STATUS_SCALE = ConsoleFrameEncoder.ascii(" | scale ");
+	static final byte[] STATUS_PERCENT = ConsoleFrameEncoder.ascii("%");
+	static final byte[] STATUS_MICROSECONDS = ConsoleFrameEncoder.ascii(" us");
+	static final byte[] STATUS_EARLY_DEPTH_TEST = ConsoleFrameEncoder.ascii(" | early-z ");
+	static final byte[] STATUS_REJECTED_TRIANGLES = ConsoleFrameEncoder.ascii(" triangles, ");
+	static final byte[] STATUS_REJECTED_BLOCKS = ConsoleFrameEncoder.ascii(" blocks rejected");
+	static final byte[] STATUS_EXIT = ConsoleFrameEncoder.ascii(" | Press 'q' to exit");
+
+	// The terminal answers with the position of the cursor, which is its size in rows and columns.
+	static final String TERMINAL_SIZE_QUERY =
+		"\u001b[s" +			// Save the cursor position in an internal register.
+		"\u001b[1024;1024H" +	// Move the cursor to a ridiculously high number of columns and rows.
+		"\u001b[6n" +			// Print the current *actual* position of the cursor to `stdin`.
+		"\u001b[u";			// Restore the cursor position that was saved earlier from that internal register.
+	static final byte[] TERMINAL_SIZE_QUERY_BYTES = ConsoleFrameEncoder.ascii(TERMINAL_SIZE_QUERY);
+	static final long TERMINAL_SIZE_QUERY_INTERVAL_NANOS = 500000000L;
+	static long lastTerminalSizeQuery = System.nanoTime();
 
 	// Runtime registers
-	static boolean MainLoop = true;
-	static float CameraX = 0.0f, CameraY = 0.0f, CameraZ = -1.5f;
-	static float MovementFactor = 0.5f;
+	static volatile boolean MainLoop = true;
+	static InputReader inputReader;
 
 	static Vector3f[] vertices = new Vector3f[]
 	{
@@ -799,7 +5569,22 @@ class ThreeDee
 		21, 22, 23  //    1, 2, 3,
 	};
 
+	static Mesh mesh;
+	static BoundingVolumeHierarchy bvh;
+	static InstanceBuffer instances = InstanceBuffer.single();
+	static Matrix4x4f modelViewMatrix = new Matrix4x4f(0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0);
+	static VertexBuffer vertexBuffer = new VertexBuffer();
+	static TriangleCuller triangleCuller = new TriangleCuller();
 	static Texture texture;
+	static TexturedFragmentSink fragmentSink;
+	static SceneRasterizer sceneRasterizer;
+	static ForkJoinPool renderPool = null;
+	static FrameStatistics frameStatistics = new FrameStatistics();
+	static FrameTimer frameTimer = new FrameTimer(frameStatistics);
+
+	// Pipeline counters shown in the status line (see `runPipelined`).
+	static int pipelineDepth = 0;
+	static int droppedFrames = 0;
 
 	static Texture defaultTexture = new Texture(new Vector3i[]
 	{
@@ -835,75 +5620,467 @@ class ThreeDee
 		{  
 			System.out.print("\u001b[32m");
 		}
-		else
+		else
+		{
+			System.out.print("\u001b[38;5;" + (int) (232 + (grayscale * 16.0f)) + "m");
+		}
+	}
+
+	public static void setConsoleCursorPosition(int x, int y)
+	{
+		System.out.print("\u001b[" + (y + 1) + ";" + (x + 1) + "H");
+	}
+
+	public static boolean IsWindows = System.getProperty("os.name").startsWith("Windows");
+
+	public static void enterRawMode() throws Exception
+	{
+		// Enter non-canonical (raw) mode.
+		if (IsWindows)
+		{
+			// Non-canonical mode is a console mode that requires Win32 API calls. Pure Java doesn't support native calls like this. But C# does. And with the help of Powershell, C# code can actually be executed inline.
+			// These flags are the ones that need to be disabled.
+			int consoleModeFlags = WindowsInterop.KERNEL32_ENABLE_LINE_INPUT |
+				WindowsInterop.KERNEL32_ENABLE_PROCESSED_INPUT |
+				WindowsInterop.KERNEL32_ENABLE_ECHO_INPUT;
+			// Run Powershell with a predefined script that can change the terminal to non-canonical mode.
+			WindowsInterop.runPowershellScript(WindowsInterop.getStdinModeChangePowershellScript(consoleModeFlags, false));
+		}
+		else
+		{
+			String[] nonCanonicalModeCmdUnix = { "/bin/sh", "-c", "stty raw < /dev/tty" };
+			Runtime.getRuntime().exec(nonCanonicalModeCmdUnix).waitFor();
+		}
+	}
+
+	public static Vector2i getTerminalSize() throws Exception
+	{
+		// Get the terminal buffer size.
+		Vector2i terminalSize;
+		if (IsWindows)
+		{
+			// This is the worst way of retrieving the data, but that's just how Windows works.
+			// There's no way of retrieving the terminal size without calling native Windows API's, which would require adding dependencies like JNI to this project, which is exactly what this project tries to avoid.
+			// The terminal size will be retrieved by Powershell instead. This time, no native API calling is required.
+			String[] sizeString = WindowsInterop.runPowershellScript("$Host.Ui.RawUi.WindowSize.ToString()").split(",");
+
+			int width = Integer.parseInt(sizeString[0]);
+			int height = Integer.parseInt(sizeString[1]);
+			
+			terminalSize = new Vector2i(width, height);
+		}
+		else
+		{
+			// Use ANSI escape codes to retrieve the terminal buffer size.
+			System.out.print(TERMINAL_SIZE_QUERY);
+
+			// The terminal returns the data asynchronously, so wait for it (reading from `stdin` blocks until something is available).
+			// Get the ANSI escape code from `stdin`, containing the total number of rows and columns (in that order).
+			String terminalSizeRawAnsi = "";
+			int read;
+			while ((read = System.in.read()) >= 0)
+			{
+				char input = (char) read;
+				terminalSizeRawAnsi += input;
+				if (input == 'R') // 'R' marks the end of this specific ANSI escape code.
+				{
+					System.err.println(terminalSizeRawAnsi);
+					break;
+				}
+			}
+
+			// Parse the ANSI escape code.
+			String[] terminalSizeRawTup = terminalSizeRawAnsi.substring(2, terminalSizeRawAnsi.length() - 1).split("\\;");
+			// Create a `Vector2i` that contains the number of columns and rows (in that order).
+			terminalSize = new Vector2i(Integer.parseInt(terminalSizeRawTup[1]), Integer.parseInt(terminalSizeRawTup[0]));
+		}
+
+		return terminalSize;
+	}
+
+	/**
+	 * Draws the scene as seen in `frame` to the framebuffer.
+	 * The model rotation only depends on the frame number, so the same frame (and camera position) always produces the same image.
+	 * @param size The size of the framebuffer (in pixels, which are smaller than cells in the sub-cell render modes).
+	 * @param controls The camera position.
+	 * @return The number of triangles drawn.
+	 */
+	public static int drawScene(int frame, Vector2i size, ControlState controls)
+	{
+		framebuffer.clear();
+		frameTimer.endStage(FrameStage.Clear);
+
+		//Matrix4x4f projectionMatrix = Matrix4x4f.projection(180.0f, 0.01f, 100.0f);
+		Matrix4x4f translationMatrix = Matrix4x4f.translation(new Vector3f(-controls.cameraX, -controls.cameraY, -controls.cameraZ));
+		Matrix4x4f rotationMatrix = Matrix4x4f.rotation(Vector4f.fromEulerAngles(frame / 45.0f, 0, frame / 30.0f));
+		Matrix4x4f aspectRatioMatrix = Matrix4x4f.scale(new Vector3f(2.25f * consoleRenderMode.getPixelAspectRatio() * size.Y / (float) size.X, 1.0f, 1.0f));
+
+		// Compose the view-aspect matrix once; every instance only adds its own matrix and the model rotation.
+		// Instances that can't be visible are dropped before transforming their vertices, so the cost of the rest of the frame only depends on the visible ones.
+		Matrix4x4f viewMatrix = aspectRatioMatrix.multiply(translationMatrix);
+		triangleCuller.cullInstances(mesh, bvh, instances, viewMatrix, framebuffer.farPlane);
+
+		// Transform every vertex of every visible instance (shared vertices are transformed only once).
+		vertexBuffer.begin(mesh, triangleCuller.visibleInstanceCount);
+		for (int slot = 0; slot < triangleCuller.visibleInstanceCount; slot++)
+		{
+			instances.getModelViewMatrix(triangleCuller.visibleInstances[slot], viewMatrix, rotationMatrix, modelViewMatrix);
+			vertexBuffer.transform(mesh, modelViewMatrix, size.X, size.Y, slot);
+		}
+		frameTimer.endStage(FrameStage.Transform);
+
+		// Drop the triangles that cannot be visible before rasterizing.
+		triangleCuller.cullVisibleInstances(mesh, bvh, instances, viewMatrix, rotationMatrix, vertexBuffer, framebuffer.farPlane);
+		if (sortFrontToBack)
+		{
+			triangleCuller.sortFrontToBack(vertexBuffer);
+		}
+		sceneRasterizer.begin(vertexBuffer, vertexBuffer.indices, triangleCuller.visible, triangleCuller.visibleCount);
+		if (showLines)
+		{
+			sceneRasterizer.setNeighbors(mesh.getNeighbors(), mesh.getTriangleCount());
+		}
+		frameTimer.endStage(FrameStage.Cull);
+
+		// Render all the fragments of the triangles straight to the framebuffer.
+		int drawn = renderPool != null ? sceneRasterizer.drawTiled(renderPool) : sceneRasterizer.drawSerial();
+		frameTimer.endStage(FrameStage.Rasterize);
+		frameStatistics.recordEarlyDepthTest(sceneRasterizer.rejectedTriangles, sceneRasterizer.rejectedBlocks);
+		return drawn;
+	}
+
+	/**
+	 * Renders a fixed number of frames without a terminal, writes them to the output file (if any) and prints the throughput.
+	 */
+	public static void runHeadless(Vector2i terminalSize) throws IOException
+	{
+		OffscreenOutputFormat format = outputFormat != null ? outputFormat :
+			(outputFile != null ? OffscreenFrameWriter.getFormatFromPath(outputFile) : OffscreenOutputFormat.None);
+		String path = outputFile != null ? outputFile : "-";
+		Vector2i size = consoleRenderMode.getFramebufferSize(terminalSize);
+		OffscreenFrameWriter writer = new OffscreenFrameWriter(format, path, size.X, size.Y, consoleRenderMode);
+
+		int frame = 0;
+		long triangles = 0, drawNanos = 0, outputNanos = 0;
+		long startTimestamp = System.nanoTime();
+		for (; frame < headlessFrames; frame++)
+		{
+			frameTimer.beginFrame(frame);
+			long drawStart = System.nanoTime();
+			triangles += drawScene(frame, size, ControlState.INITIAL);
+			long outputStart = System.nanoTime();
+			if (!writer.write(framebuffer, frame, differentialOutput))
+			{
+				System.err.println("Render mode not supported: " + consoleRenderMode);
+				break;
+			}
+			long outputEnd = System.nanoTime();
+			frameTimer.endStage(FrameStage.Output);
+			frameTimer.endFrame();
+			drawNanos += outputStart - drawStart;
+			outputNanos += outputEnd - outputStart;
+		}
+		long elapsedNanos = System.nanoTime() - startTimestamp;
+		writer.close();
+
+		int frames = Math.max(frame, 1);
+		System.err.printf("Rendered %d frames at %s×%s in %d ms: %.1f FPS, %.3f ms per frame (draw %.3f ms, output %.3f ms), %d triangles per frame%n",
+			frame, size.X, size.Y, elapsedNanos / 1000000, frame * 1e9 / elapsedNanos, elapsedNanos / 1e6 / frames,
+			drawNanos / 1e6 / frames, outputNanos / 1e6 / frames, triangles / frames);
+		if (format != OffscreenOutputFormat.None)
+		{
+			System.err.printf("Wrote %d bytes (%s) to %s%n", writer.bytesWritten, format, path);
+		}
+		if (showStats)
+		{
+			System.err.print(frameStatistics.getSummary());
+		}
+	}
+
+	/**
+	 * Draws every frame once and streams it to the viewers connected to `serverPort`, at most `serverFps` times per second.
+	 * Nothing is drawn while there are no viewers.
+	 */
+	public static void runServer(Vector2i terminalSize, PrintStream log) throws IOException
+	{
+		FrameBroadcastServer server = new FrameBroadcastServer(serverPort, terminalSize, consoleRenderMode, log);
+		log.printf("Serving %s×%s frames on %s:%d (viewers can send the name of a render mode to change it)%n",
+			terminalSize.X, terminalSize.Y, InetAddress.getLoopbackAddress().getHostAddress(), server.getPort());
+
+		long frameNanos = (long) (1e9 / serverFps);
+		long deadline = System.nanoTime();
+		for (int frame = 0; MainLoop; frame++)
+		{
+			// Wait for the next frame (and for a viewer, if there are none), sending the previous frames in the meantime.
+			server.serve(deadline);
+			deadline = Math.max(deadline + frameNanos, System.nanoTime());
+
+			frameTimer.beginFrame(frame);
+			consoleRenderMode = server.getDrawingMode();
+			Vector2i size = consoleRenderMode.getFramebufferSize(terminalSize);
+			if (!size.equals(framebuffer.bufferSize))
+			{
+				framebuffer.resize(size.X, size.Y);
+			}
+			drawScene(frame, size, ControlState.INITIAL);
+			server.broadcast(framebuffer, frame);
+			frameTimer.endStage(FrameStage.Encode);
+			frameTimer.endFrame();
+		}
+	}
+
+	/**
+	 * Encodes the framebuffer and the status line with `frameEncoder`.
+	 */
+	public static void encodeFrame(Framebuffer framebuffer, Vector2i terminalSize, int frame, int framesPerSecond, int triangles, int backFacing, int offScreen,
+		int rejectedTriangles, int rejectedBlocks)
+	{
+		if (!frameEncoder.encodeFramebuffer(framebuffer, consoleRenderMode, differentialOutput))
+		{
+			frameEncoder.putCursorPosition(2, terminalSize.Y / 2);
+			frameEncoder.put(ConsoleFrameEncoder.ascii("Render mode not supported: " + consoleRenderMode));
+			MainLoop = false;
+		}
+
+		// Print status text on top of the rendered scene.
+		frameEncoder.putCursorPosition(0, terminalSize.Y - 1);
+		frameEncoder.putFgRgb24(0xffffff);
+		frameEncoder.put(STATUS_FRAME);
+		frameEncoder.putDecimal(frame);
+		frameEncoder.put(STATUS_SEPARATOR);
+		frameEncoder.putDecimal(framesPerSecond);
+		frameEncoder.put(STATUS_FPS);
+		frameEncoder.putDecimal(triangles);
+		frameEncoder.put(STATUS_TRIANGLES);
+		frameEncoder.put(STATUS_SEPARATOR);
+		frameEncoder.putDecimal(backFacing);
+		frameEncoder.put(STATUS_BACK_FACING);
+		frameEncoder.putDecimal(offScreen);
+		frameEncoder.put(STATUS_OFF_SCREEN);
+		if (differentialOutput)
+		{
+			frameEncoder.put(STATUS_SEPARATOR);
+			frameEncoder.putDecimal(frameEncoder.bytesSaved);
+			frameEncoder.put(STATUS_BYTES_SAVED);
+		}
+		if (showStats)
+		{
+			// Average time of every stage during the last second.
+			for (int i = 0; i < STATUS_STAGES.length; i++)
+			{
+				frameEncoder.put(STATUS_STAGES[i]);
+				frameEncoder.putDecimal(frameStatistics.averageMicros[i]);
+			}
+			frameEncoder.put(STATUS_MICROSECONDS);
+			if (earlyDepthTest)
+			{
+				frameEncoder.put(STATUS_EARLY_DEPTH_TEST);
+				frameEncoder.putDecimal(rejectedTriangles);
+				frameEncoder.put(STATUS_REJECTED_TRIANGLES);
+				frameEncoder.putDecimal(rejectedBlocks);
+				frameEncoder.put(STATUS_REJECTED_BLOCKS);
+			}
+		}
+		if (resolutionScaler != null)
+		{
+			frameEncoder.put(STATUS_SCALE);
+			frameEncoder.putDecimal(resolutionScaler.getPercentage());
+			frameEncoder.put(STATUS_PERCENT);
+		}
+		if (pipelined)
+		{
+			frameEncoder.put(STATUS_SEPARATOR);
+			frameEncoder.putDecimal(pipelineDepth);
+			frameEncoder.put(STATUS_PIPELINE_DEPTH);
+			frameEncoder.putDecimal(droppedFrames);
+			frameEncoder.put(STATUS_DROPPED);
+		}
+		frameEncoder.put(STATUS_EXIT);
+
+		// There's no portable way of being notified when the terminal is resized, so ask for its size every now and then (the answer arrives through `InputReader`).
+		// On Windows, the answer doesn't arrive through `stdin` (the size can only be retrieved with Powershell, which is too slow for this).
+		long now = System.nanoTime();
+		if (!IsWindows && now - lastTerminalSizeQuery > TERMINAL_SIZE_QUERY_INTERVAL_NANOS)
 		{
-			System.out.print("\u001b[38;5;" + (int) (232 + (grayscale * 16.0f)) + "m");
+			frameEncoder.put(TERMINAL_SIZE_QUERY_BYTES);
+			lastTerminalSizeQuery = now;
 		}
 	}
 
-	public static String getAnsiCodeForFgRgb24(Vector3i rgb)
+	/**
+	 * Runs the main loop with rasterization, encoding and output in their own threads, so the next frame is drawn while the previous ones are encoded and written.
+	 * 
+	 * The rasterizer (this thread) and the encoder share a triple buffer of frames: when the encoder can't keep up (because the output is blocked), the rasterizer keeps drawing and only the latest frame is encoded.
+	 * Encoded frames are never dropped (differential output depends on every frame reaching the terminal): the output thread writes them in order from a queue of two.
+	 */
+	public static void runPipelined(Vector2i terminalSize) throws Exception
 	{
-		return getAnsiCodeForFgRgb24(rgb.X, rgb.Y, rgb.Z);
-	}
+		Vector2i framebufferSize = consoleRenderMode.getFramebufferSize(terminalSize);
+		PipelinedFrame[] frames = new PipelinedFrame[3];
+		for (int i = 0; i < frames.length; i++)
+		{
+			frames[i] = new PipelinedFrame(framebufferSize, texture);
+		}
+		LatestFrameExchange<PipelinedFrame> rasterizedFrames = new LatestFrameExchange<PipelinedFrame>(frames[1]);
 
-	public static String getAnsiCodeForFgRgb24(int r, int g, int b)
-	{
-		return "\u001b[38;2;" + Math.min(r, 255) + ";" + Math.min(g, 255) + ";" + Math.min(b, 255) + "m";
-	}
+		EncodedFrame endOfOutput = new EncodedFrame();
+		ArrayBlockingQueue<EncodedFrame> freeEncodedFrames = new ArrayBlockingQueue<EncodedFrame>(2);
+		ArrayBlockingQueue<EncodedFrame> encodedFrames = new ArrayBlockingQueue<EncodedFrame>(3);
+		freeEncodedFrames.add(new EncodedFrame());
+		freeEncodedFrames.add(new EncodedFrame());
 
-	public static void setConsoleCursorPosition(int x, int y)
-	{
-		System.out.print("\u001b[" + (y + 1) + ";" + (x + 1) + "H");
-	}
+		// Frames that went through each stage (for the pipeline depth).
+		AtomicInteger rasterizedCount = new AtomicInteger(), writtenCount = new AtomicInteger();
 
-	public static void processUserInput() throws IOException
-	{
-		// This polls all pending characters from `stdin` each frame.
-		if (IsWindows ? true : System.in.available() > 0)
+		Thread encodeThread = new Thread(() ->
 		{
-			char input = (char) System.in.read();
-			switch (input)
+			FrameTimer timer = new FrameTimer(frameStatistics);
+			PipelinedFrame frame = frames[2];
+			Framebuffer encoderDisplayFramebuffer = new Framebuffer(framebufferSize.X, framebufferSize.Y, 0x000000);
+			Vector2i encoderTerminalSize = terminalSize;
+			int currentSecondFrame = 0, framesPerSecond = 0;
+			long lastSecondTimestamp = System.currentTimeMillis();
+			try
 			{
-				case 'q':
-					MainLoop = false;
-					break;
-
-				case 'w':
-					CameraZ += MovementFactor;
-					break;
-
-				case 'W':
-					CameraZ += MovementFactor * 5;
-					break;
+				while ((frame = rasterizedFrames.take(frame)) != null)
+				{
+					// A frame drawn before the terminal was resized would be garbled by the new size: skip it (a frame of the right size follows).
+					Vector2i reportedSize = inputReader.getState().terminalSize;
+					if (reportedSize != null && !reportedSize.equals(frame.terminalSize))
+					{
+						continue;
+					}
 
-				case 's':
-					CameraZ -= MovementFactor;
-					break;
+					timer.beginFrame(frame.frame);
+					if (!frame.terminalSize.equals(encoderTerminalSize))
+					{
+						encoderTerminalSize = frame.terminalSize;
+						Vector2i size = consoleRenderMode.getFramebufferSize(encoderTerminalSize);
+						encoderDisplayFramebuffer.resize(size.X, size.Y);
+						frameEncoder.resize(encoderTerminalSize.X, encoderTerminalSize.Y);
+					}
 
-				case 'S':
-					CameraZ -= MovementFactor * 5;
-					break;
+					droppedFrames = rasterizedFrames.getDropped();
+					pipelineDepth = rasterizedCount.get() - droppedFrames - writtenCount.get();
+					Framebuffer outputFramebuffer = frame.framebuffer;
+					if (resolutionScaler != null)
+					{
+						ResolutionScaler.upscale(frame.framebuffer, encoderDisplayFramebuffer);
+						outputFramebuffer = encoderDisplayFramebuffer;
+					}
+					encodeFrame(outputFramebuffer, encoderTerminalSize, frame.frame, framesPerSecond, frame.triangles, frame.backFacing, frame.offScreen,
+						frame.rejectedTriangles, frame.rejectedBlocks);
+
+					EncodedFrame encoded = freeEncodedFrames.take();
+					encoded.copyFrom(frameEncoder, frame.frame, frame.startTimestamp);
+					frameEncoder.reset();
+					timer.endStage(FrameStage.Encode);
+					encodedFrames.put(encoded);
+
+					// The FPS counter shows the frames that reach the terminal.
+					currentSecondFrame++;
+					long currentTimestamp = System.currentTimeMillis();
+					if (currentTimestamp > lastSecondTimestamp + 1000)
+					{
+						lastSecondTimestamp = currentTimestamp;
+						framesPerSecond = currentSecondFrame;
+						frameStatistics.endSecond();
+						currentSecondFrame = 0;
+					}
+				}
+			}
+			catch (InterruptedException ex)
+			{
+				Thread.currentThread().interrupt();
+			}
+			finally
+			{
+				MainLoop = false;
+				encodedFrames.add(endOfOutput);
+			}
+		}, "Encoder");
 
-				case 'a':
-					CameraX -= MovementFactor;
-					break;
+		Thread outputThread = new Thread(() ->
+		{
+			FrameTimer timer = new FrameTimer(frameStatistics);
+			long lastWriteTimestamp = System.nanoTime();
+			try
+			{
+				EncodedFrame encoded;
+				while ((encoded = encodedFrames.take()) != endOfOutput)
+				{
+					timer.beginFrame(encoded.frame);
+					encoded.writeTo(frameEncoder.channel);
+					writtenCount.incrementAndGet();
+					timer.endStage(FrameStage.Output);
+					frameStatistics.recordFrame(System.nanoTime() - encoded.startTimestamp);
+					freeEncodedFrames.put(encoded);
+
+					// Here, the frame time is the time between frames reaching the terminal.
+					long writeTimestamp = System.nanoTime();
+					if (resolutionScaler != null)
+					{
+						resolutionScaler.update(writeTimestamp - lastWriteTimestamp);
+					}
+					lastWriteTimestamp = writeTimestamp;
+				}
+			}
+			catch (Exception ex)
+			{
+				System.err.println("Cannot write frame: " + ex.getMessage());
+				MainLoop = false;
+				rasterizedFrames.close();
+				// The frames this thread had are never given back, so the encoder may be waiting for one.
+				encodeThread.interrupt();
+			}
+		}, "Output");
 
-				case 'd':
-					CameraX += MovementFactor;
-					break;
+		encodeThread.start();
+		outputThread.start();
 
-				case 'z':
-					CameraY -= MovementFactor;
-					break;
+		PipelinedFrame frame = frames[0];
+		Vector2i currentTerminalSize = terminalSize, currentFramebufferSize = framebufferSize;
+		for (int frameNumber = 0; MainLoop; frameNumber++)
+		{
+			frameTimer.beginFrame(frameNumber);
+			ControlState controls = inputReader.getState();
+			if (controls.quit)
+			{
+				MainLoop = false;
+			}
+			if (controls.terminalSize != null && !controls.terminalSize.equals(currentTerminalSize))
+			{
+				// The encoder resizes itself when it gets the first frame of the new size.
+				currentTerminalSize = controls.terminalSize;
+				currentFramebufferSize = consoleRenderMode.getFramebufferSize(currentTerminalSize);
+			}
+			frameTimer.endStage(FrameStage.Input);
 
-				case 'x':
-					CameraY += MovementFactor;
-					break;
+			// `drawScene` draws to the framebuffer of the current frame.
+			Vector2i renderSize = resolutionScaler != null ? resolutionScaler.getSize(currentFramebufferSize) : currentFramebufferSize;
+			if (!renderSize.equals(frame.framebuffer.bufferSize))
+			{
+				frame.framebuffer.resize(renderSize.X, renderSize.Y);
 			}
+			framebuffer = frame.framebuffer;
+			sceneRasterizer = frame.sceneRasterizer;
+			frame.frame = frameNumber;
+			frame.startTimestamp = frameTimer.frameStart;
+			frame.terminalSize = currentTerminalSize;
+			frame.triangles = drawScene(frameNumber, renderSize, controls);
+			frame.backFacing = triangleCuller.backFacing;
+			frame.offScreen = triangleCuller.offScreen;
+			frame.rejectedTriangles = sceneRasterizer.rejectedTriangles;
+			frame.rejectedBlocks = sceneRasterizer.rejectedBlocks;
+
+			rasterizedCount.incrementAndGet();
+			frame = rasterizedFrames.publish(frame);
 		}
+
+		rasterizedFrames.close();
+		encodeThread.join();
+		outputThread.join();
 	}
-	
-	public static boolean IsWindows = System.getProperty("os.name").startsWith("Windows");
 
 	public static void main(String[] args) throws InterruptedException, IOException, Exception
 	{
@@ -918,116 +6095,212 @@ class ThreeDee
 					textureFile = argkv[1];
 					break;
 
+				case "-M":
+				case "--model":
+					modelFile = argkv[1];
+					break;
+
 				case "--show-lines":
 					showLines = true;
 					break;
 
+				case "--wireframe":
+					wireframe = true;
+					showLines = true;
+					break;
+
 				case "--show-vertices":
 					showVertices = true;
 					break;
 
+				case "--differential":
+					differentialOutput = true;
+					break;
+
+				case "--threads":
+					renderThreads = Integer.parseInt(argkv[1]);
+					break;
+
 				case "--color-mode":
 					consoleRenderMode = Enum.valueOf(ConsoleRenderMode.class, argkv[1]);
 					break;
+
+				case "--no-texture-cache":
+					useTextureCache = false;
+					break;
+
+				case "--clear-texture-cache":
+					clearTextureCache = true;
+					break;
+
+				case "--texture-cache-size":
+					textureCacheMegabytes = Long.parseLong(argkv[1]);
+					break;
+
+				case "--no-mipmaps":
+					mipmaps = false;
+					break;
+
+				case "--no-early-z":
+					earlyDepthTest = false;
+					break;
+
+				case "--front-to-back":
+					sortFrontToBack = true;
+					break;
+
+				case "--instances":
+					instanceCount = Integer.parseInt(argkv[1]);
+					break;
+
+				case "--target-fps":
+					resolutionScaler = new ResolutionScaler(Float.parseFloat(argkv[1]));
+					break;
+
+				case "--pipelined":
+					pipelined = true;
+					break;
+
+				case "--stats":
+					showStats = true;
+					break;
+
+				case "--headless":
+					headless = true;
+					break;
+
+				case "--size":
+					String[] sizeWxH = argkv[1].split("x");
+					headlessSize = new Vector2i(Integer.parseInt(sizeWxH[0]), Integer.parseInt(sizeWxH[1]));
+					headless = true;
+					break;
+
+				case "--frames":
+					headlessFrames = Integer.parseInt(argkv[1]);
+					headless = true;
+					break;
+
+				case "--output":
+					outputFile = argkv[1];
+					headless = true;
+					break;
+
+				case "--output-format":
+					outputFormat = Enum.valueOf(OffscreenOutputFormat.class, argkv[1]);
+					headless = true;
+					break;
+
+				case "--serve":
+					serverPort = Integer.parseInt(argkv[1]);
+					headless = true;
+					break;
+
+				case "--serve-fps":
+					serverFps = Float.parseFloat(argkv[1]);
+					break;
 			}
 		}
 
-		// Enter non-canonical (raw) mode.
-		if (IsWindows)
+		// Headless mode doesn't use the terminal at all: its size comes from the command line.
+		Vector2i terminalSize = headlessSize;
+		if (!headless)
 		{
-			// Non-canonical mode is a console mode that requires Win32 API calls. Pure Java doesn't support native calls like this. But C# does. And with the help of Powershell, C# code can actually be executed inline.
-			// These flags are the ones that need to be disabled.
-			int consoleModeFlags = WindowsInterop.KERNEL32_ENABLE_LINE_INPUT |
-				WindowsInterop.KERNEL32_ENABLE_PROCESSED_INPUT |
-				WindowsInterop.KERNEL32_ENABLE_ECHO_INPUT;
-			// Run Powershell with a predefined script that can change the terminal to non-canonical mode.
-			WindowsInterop.runPowershellScript(WindowsInterop.getStdinModeChangePowershellScript(consoleModeFlags, false));
+			enterRawMode();
+			terminalSize = getTerminalSize();
 		}
-		else
+
+		// In headless mode, the standard output may be used for the frames.
+		PrintStream log = headless ? System.err : System.out;
+		log.printf("Resolution is %s×%s%n", terminalSize.X, terminalSize.Y);
+		if (consoleRenderMode.subPixelsX * consoleRenderMode.subPixelsY > 1)
 		{
-			String[] nonCanonicalModeCmdUnix = { "/bin/sh", "-c", "stty raw < /dev/tty" };
-			Runtime.getRuntime().exec(nonCanonicalModeCmdUnix).waitFor();
+			log.printf("Rendering %s×%s pixels per cell%n", consoleRenderMode.subPixelsX, consoleRenderMode.subPixelsY);
 		}
+		log.println(SimdSupport.describe());
 
-		// Get the terminal buffer size.
-		Vector2i terminalSize = new Vector2i(80, 25);
-		if (IsWindows)
+		// Create the framebuffer, where all drawing operations will occur. It needs the terminal buffer size that we stored in `terminalSize` (times the pixels per cell of the render mode).
+		Vector2i framebufferSize = consoleRenderMode.getFramebufferSize(terminalSize);
+		framebuffer = new Framebuffer(framebufferSize.X, framebufferSize.Y, 0x000000);
+
+		// Load the model specified in the command line. If no model argument is supplied, use the cube instead.
+		if (modelFile != null)
 		{
-			// This is the worst way of retrieving the data, but that's just how Windows works.
-			// There's no way of retrieving the terminal size without calling native Windows API's, which would require adding dependencies like JNI to this project, which is exactly what this project tries to avoid.
-			// The terminal size will be retrieved by Powershell instead. This time, no native API calling is required.
-			String[] sizeString = WindowsInterop.runPowershellScript("$Host.Ui.RawUi.WindowSize.ToString()").split(",");
+			long loadStart = System.nanoTime();
+			mesh = MeshLoader.load(modelFile);
+			log.printf("Loaded %d triangles from %s in %d ms%n", mesh.getTriangleCount(), modelFile, (System.nanoTime() - loadStart) / 1000000);
+		}
+		else
+		{
+			mesh = Mesh.fromVectors(vertices, textureCoordinates, indices);
+		}
+		bvh = new BoundingVolumeHierarchy(mesh);
+		if (showLines)
+		{
+			mesh.getNeighbors(); // Found once here (after the BVH reorders the triangles), instead of while drawing the first frame.
+		}
+		if (instanceCount > 1)
+		{
+			instances = InstanceBuffer.grid(instanceCount, INSTANCE_SPACING);
+			log.printf("Drawing %d instances of the model%n", instanceCount);
+		}
 
-			int width = Integer.parseInt(sizeString[0]);
-			int height = Integer.parseInt(sizeString[1]);
-			
-			terminalSize = new Vector2i(width, height);
+		// Use the URL specified in the texture argument from the command line. If no texture argument is supplied, use the default texture instead.
+		TextureCache textureCache = new TextureCache(TextureCache.getDefaultDirectory(), textureCacheMegabytes * 1024 * 1024);
+		if (clearTextureCache)
+		{
+			textureCache.clear();
+		}
+		if (textureFile != null)
+		{
+			long loadStart = System.nanoTime();
+			texture = useTextureCache ? textureCache.load(textureFile, mipmaps) : new Texture(textureFile, mipmaps);
+			log.printf("Loaded %d×%d texture from %s in %d ms%s%n", texture.width, texture.height, textureFile,
+				(System.nanoTime() - loadStart) / 1000000, textureCache.lastLoadWasHit ? " (cached)" : "");
 		}
 		else
 		{
-			// Use ANSI escape codes to retrieve the terminal buffer size.
-			System.out.print(
-				"\u001b[s" +			// Save the cursor position in an internal register.
-				"\u001b[1024;1024H" +	// Move the cursor to a ridiculously high number of columns and rows.
-				"\u001b[6n" +			// Print the current *actual* position of the cursor to `stdin`.
-				"\u001b[u"				// Restore the cursor position that was saved earlier from that internal register.
-			);
-
-			// It's not guaranteed that the data we want will be immediately available since the terminal seems to return the data asynchronously.
-			// The program basically needs to wait for the data to be available on `stdin`.
-			while (System.in.available() < 6)
-			{}
-			
-			// Get the ANSI escape code from `stdin`, containing the total number of rows and columns (in that order).
-			String terminalSizeRawAnsi = "";
-			while (System.in.available() > 0)
-			{
-				char input = (char) System.in.read();
-				terminalSizeRawAnsi += input;
-				if (input == 'R') // 'R' marks the end of this specific ANSI escape code.
-				{
-					System.err.println(terminalSizeRawAnsi);
-					break;
-				}
-			}
+			texture = defaultTexture;
+		}
+		fragmentSink = new TexturedFragmentSink(framebuffer, texture);
+		sceneRasterizer = new SceneRasterizer(framebuffer, fragmentSink, !wireframe, showLines, showVertices, earlyDepthTest);
 
-			// Parse the ANSI escape code.
-			String[] terminalSizeRawTup = terminalSizeRawAnsi.substring(2, terminalSizeRawAnsi.length() - 1).split("\\;");
-			// Create a `Vector2i` that contains the number of columns and rows (in that order).
-			terminalSize = new Vector2i(Integer.parseInt(terminalSizeRawTup[1]), Integer.parseInt(terminalSizeRawTup[0]));
+		// Multithreaded rendering splits the framebuffer in tiles that are rasterized by a pool of workers.
+		if (renderThreads > 1)
+		{
+			renderPool = new ForkJoinPool(renderThreads);
 		}
 
-		System.out.printf("Resolution is %s×%s%n", terminalSize.X, terminalSize.Y);
+		if (serverPort >= 0)
+		{
+			runServer(terminalSize, log);
+			return;
+		}
+		if (headless)
+		{
+			runHeadless(terminalSize);
+			return;
+		}
 
-		// Create the framebuffer, where all drawing operations will occur. It needs the terminal buffer size that we stored in `terminalSize`.
-		framebuffer = new Framebuffer<Vector3i>(terminalSize.X, terminalSize.Y, new Vector3i(0, 0, 0));
+		displayFramebuffer = new Framebuffer(framebufferSize.X, framebufferSize.Y, 0x000000);
 
-		// Use the URL specified in the texture argument from the command line. If no texture argument is supplied, use the default texture instead.
-		texture = textureFile != null ? new Texture(textureFile) : defaultTexture;
+		// Create the frame encoder, which writes the encoded frames straight to the standard output file descriptor (bypassing `System.out`).
+		System.out.flush();
+		frameEncoder = new ConsoleFrameEncoder(terminalSize.X, terminalSize.Y, new FileOutputStream(FileDescriptor.out).getChannel());
 
 		// Enter the main loop that takes care of reading user input, drawing the scene to the framebuffer and render the latter to the standard output.
 		int frame = 0, currentSecondFrame = 0, framesPerSecond = 0, trianglesPerFrame = 0;
 		long lastSecondTimestamp = System.currentTimeMillis();
 
-		// On Windows, user input needs to be processed asynchronously, because all `InputStream` methods seem to block the thread until a character is read.
-		if (IsWindows)
+		// User input is processed asynchronously: reading `stdin` blocks the thread until a character is read (this is the case on Windows even for `InputStream.available`).
+		// The reader thread sleeps until then, and the main loop only takes the latest state once per frame.
+		inputReader = new InputReader(System.in);
+		inputReader.start();
+
+		if (pipelined)
 		{
-			Thread userInputThread = new Thread(() ->
-			{
-				try
-				{
-					while (MainLoop)
-					{
-						processUserInput();
-						Thread.sleep(167);
-					}
-				}
-				catch (Exception ex)
-				{
-					System.err.println("Cannot process user input: " + ex.getMessage());
-				}
-			});
-			userInputThread.start();
+			runPipelined(terminalSize);
+			exitTerminal();
+			return;
 		}
 
 		while (MainLoop)
@@ -1036,241 +6309,65 @@ class ThreeDee
 			// PROCESS USER INPUT //
 			////////////////////////
 
-			// AFAIK, this method is non-blocking when running on Linux.
-			if (!IsWindows)
+			frameTimer.beginFrame(frame);
+
+			// Take the state once, so the whole frame sees the same camera.
+			ControlState controls = inputReader.getState();
+			if (controls.quit)
+			{
+				MainLoop = false;
+			}
+
+			// Follow the size of the terminal (see `encodeFrame`). Everything is resized before drawing, so no frame of the previous size reaches the terminal.
+			if (controls.terminalSize != null && !controls.terminalSize.equals(terminalSize))
 			{
-				processUserInput();
+				terminalSize = controls.terminalSize;
+				framebufferSize = consoleRenderMode.getFramebufferSize(terminalSize);
+				framebuffer.resize(framebufferSize.X, framebufferSize.Y);
+				displayFramebuffer.resize(framebufferSize.X, framebufferSize.Y);
+				frameEncoder.resize(terminalSize.X, terminalSize.Y);
 			}
+			frameTimer.endStage(FrameStage.Input);
 
 			////////////////
 			// DRAW SCENE //
 			////////////////
 
-			framebuffer.clear();
-
-			//Matrix4x4f projectionMatrix = Matrix4x4f.projection(180.0f, 0.01f, 100.0f);
-			Matrix4x4f translationMatrix = Matrix4x4f.translation(new Vector3f(-CameraX, -CameraY, -CameraZ));
-			Matrix4x4f rotationMatrix = Matrix4x4f.rotation(Vector4f.fromEulerAngles(frame / 45.0f, 0, frame / 30.0f));
-			Matrix4x4f aspectRatioMatrix = Matrix4x4f.scale(new Vector3f(2.25f * terminalSize.Y / (float) terminalSize.X, 1.0f, 1.0f));
-
-			// Render triangles (3 vertices per iteration).
-			for (int i = 0; i < indices.length; i += 3)
+			// With a target frame rate, the scene is drawn at a lower resolution (if needed) and then scaled up to the terminal size.
+			Framebuffer outputFramebuffer = framebuffer;
+			if (resolutionScaler != null)
 			{
-				// Get triangle vertices and texture coordinates.
-				var vector1 = vertices[indices[i]];
-				var vector2 = vertices[indices[i + 1] % vertices.length];
-				var vector3 = vertices[indices[i + 2] % vertices.length];
-
-				var uv1 = textureCoordinates[indices[i]];
-				var uv2 = textureCoordinates[indices[i + 1]];
-				var uv3 = textureCoordinates[indices[i + 2]];
-
-				// Model space to world space.
-				Vector4f vector4d1 = vector1.toVector4f(1.0f);
-				Vector4f vector4d2 = vector2.toVector4f(1.0f);
-				Vector4f vector4d3 = vector3.toVector4f(1.0f);
-
-				vector4d1 = rotationMatrix.multiply(vector4d1, true);
-				vector4d2 = rotationMatrix.multiply(vector4d2, true);
-				vector4d3 = rotationMatrix.multiply(vector4d3, true);
-
-				vector4d1 = translationMatrix.multiply(vector4d1, true);
-				vector4d2 = translationMatrix.multiply(vector4d2, true);
-				vector4d3 = translationMatrix.multiply(vector4d3, true);
-
-				vector4d1 = aspectRatioMatrix.multiply(vector4d1, true);
-				vector4d2 = aspectRatioMatrix.multiply(vector4d2, true);
-				vector4d3 = aspectRatioMatrix.multiply(vector4d3, true);
-
-				vector1 = vector4d1.xyz();
-				vector2 = vector4d2.xyz();
-				vector3 = vector4d3.xyz();
-
-				// World space to projection (NDC framebuffer) space.
-				vector1 = vector1.zProject();
-				vector2 = vector2.zProject();
-				vector3 = vector3.zProject();
-
-				// Convert XY coordinates from NDC to absolute framebuffer coordinates (Z should be left untouched).
-				Vector3f fbc1 = ndcToFbSize(vector1, terminalSize.X, terminalSize.Y);
-				Vector3f fbc2 = ndcToFbSize(vector2, terminalSize.X, terminalSize.Y);
-				Vector3f fbc3 = ndcToFbSize(vector3, terminalSize.X, terminalSize.Y);
-
-				// Get all the fragments from this triangle.
-				var face = BasicShaders.face(fbc1, fbc2, fbc3, uv1, uv2, uv3, terminalSize);
-				if (face.length > 0)
-				{
-					trianglesPerFrame++;
-				}
-
-				// Render all the fragments to the framebuffer.
-				for (int j = 0; j < face.length; j++)
-				{
-					XYZUV fragment = face[j];
-					Vector3f fragmentPosition = fragment.XYZ;
-					Vector2f fragmentTexCoords = fragment.UV;
-					Vector3i fragmentColor = texture.getNdcPixel(fragmentTexCoords);
-					// Change fragment's brightness depending on the distance with the camera (only the Z coordinate).
-					fragmentColor = fragmentColor.multiply(1.0f / fragmentPosition.Z);
-					framebuffer.safeSet(fragmentPosition, fragmentColor);
-				}
-
-				// Draw triangle lines.
-				if (showLines)
-				{
-					Vector3i lineColor = new Vector3i(255, 255, 255);
-					var line1 = BasicShaders.line(fbc1, fbc2);
-					var line2 = BasicShaders.line(fbc2, fbc3);
-					var line3 = BasicShaders.line(fbc3, fbc1);
-
-					for (int j = 0; j < line1.length; j++)
-					{
-						framebuffer.safeSet(line1[j], lineColor);
-					}
-					for (int j = 0; j < line2.length; j++)
-					{
-						framebuffer.safeSet(line2[j], lineColor);
-					}
-					for (int j = 0; j < line3.length; j++)
-					{
-						framebuffer.safeSet(line3[j], lineColor);
-					}
-				}
-
-				// Draw triangle vertices.
-				if (showVertices)
+				Vector2i renderSize = resolutionScaler.getSize(framebufferSize);
+				if (!renderSize.equals(framebuffer.bufferSize))
 				{
-					Vector3i vertexColor = new Vector3i(255, 0, 255);
-
-					framebuffer.safeNdcPixelSet(vector1, vertexColor);
-					framebuffer.safeNdcPixelSet(vector2, vertexColor);
-					framebuffer.safeNdcPixelSet(vector3, vertexColor);
+					framebuffer.resize(renderSize.X, renderSize.Y);
 				}
+				trianglesPerFrame = drawScene(frame, renderSize, controls);
+				ResolutionScaler.upscale(framebuffer, displayFramebuffer);
+				outputFramebuffer = displayFramebuffer;
+			}
+			else
+			{
+				trianglesPerFrame = drawScene(frame, framebufferSize, controls);
 			}
 
 			////////////////////////
 			// RENDER FRAMEBUFFER //
 			////////////////////////
 
-			// Set cursor position to x=0, y=0.
-			setConsoleCursorPosition(0, 0);
-
-			int ansiColorCode = -1;
+			encodeFrame(outputFramebuffer, terminalSize, frame, framesPerSecond, trianglesPerFrame, triangleCuller.backFacing, triangleCuller.offScreen,
+				sceneRasterizer.rejectedTriangles, sceneRasterizer.rejectedBlocks);
+			frameTimer.endStage(FrameStage.Encode);
 
-			switch (consoleRenderMode)
+			// Write the whole frame to the standard output at once.
+			frameEncoder.flush();
+			frameTimer.endStage(FrameStage.Output);
+			frameTimer.endFrame();
+			if (resolutionScaler != null)
 			{
-				case B0W1:
-				case B1W0:
-					for (int y = 0; y < terminalSize.Y - 1; y++)
-					{
-						for (int x = 0; x < terminalSize.X - 1; x++)
-						{
-							Vector3i value = framebuffer.get(x + (y * terminalSize.X));
-							boolean isWhite = ((value.X + value.Y + value.Z) / 3) > 127;
-							
-							System.out.print((isWhite ^ consoleRenderMode == ConsoleRenderMode.B1W0) ? '\u2588' : ' ');
-						}
-						System.out.print(IsWindows ? '\n' : "\u001b[1E"); // Move to the beginning of the next line.
-					}
-					break;
-
-				case GrayscaleChars:
-					for (int y = 0; y < terminalSize.Y - 1; y++)
-					{
-						for (int x = 0; x < terminalSize.X - 1; x++)
-						{
-							Vector3i value = framebuffer.get(x + (y * terminalSize.X));
-							char charOut = getShadeCharFromFloat(((value.X + value.Y + value.Z) / 3) / 256.0f);
-							
-							System.out.print(charOut);
-						}
-						System.out.print(IsWindows ? '\n' : "\u001b[1E"); // Move to the beginning of the next line.
-					}
-					break;
-
-				case RGB4:
-					int lastColorRgb4 = -1;
-
-					for (int y = 0; y < terminalSize.Y - 1; y++)
-					{
-						for (int x = 0; x < terminalSize.X - 1; x++)
-						{
-							Vector3i value = framebuffer.get(x + (y * terminalSize.X));
-							boolean isBright = ((value.X + value.Y + value.Z) / 3) > 127;
-							int threshold = isBright ? 192 : 64; // 0 - 64 - 128 - 192 - 256
-							ansiColorCode = isBright ? 90 : 30;
-							if (value.X > threshold)
-								ansiColorCode += 1;
-							if (value.Y > threshold)
-								ansiColorCode += 2;
-							if (value.Z > threshold)
-								ansiColorCode += 4;
-							if (ansiColorCode != lastColorRgb4)
-							{
-								System.out.print("\u001b[" + ansiColorCode + "m");
-								lastColorRgb4 = ansiColorCode;
-							}
-							System.out.print('\u2588');
-						}
-						System.out.print(IsWindows ? '\n' : "\u001b[1E"); // Move to the beginning of the next line.
-					}
-					break;
-
-				case RGB8:
-					int lastColorRgb8 = -1;
-
-					for (int y = 0; y < terminalSize.Y - 1; y++)
-					{
-						for (int x = 0; x < terminalSize.X - 1; x++)
-						{
-							Vector3i value = framebuffer.get(x + (y * terminalSize.X));
-							int r = Math.min((int) ((value.X / 256.0f) * 6), 5) * 36;
-							int g = Math.min((int) ((value.Y / 256.0f) * 6), 5) * 6;
-							int b = Math.min((int) ((value.Z / 256.0f) * 6), 5);
-							//if (0 <= value.X && value.Z <= 5)
-							ansiColorCode = 16 + r + g + b;
-							if (ansiColorCode != lastColorRgb8)
-							{
-								System.out.print("\u001b[38;5;" + ansiColorCode + "m");
-								lastColorRgb4 = ansiColorCode;
-							}
-							System.out.print('\u2588');
-						}
-						System.out.print(IsWindows ? '\n' : "\u001b[1E"); // Move to the beginning of the next line.
-					}
-					break;
-
-				case RGB24:
-					Vector3i lastColor = new Vector3i(0, 0, 0);
-
-					for (int y = 0; y < terminalSize.Y - 1; y++)
-					{
-						for (int x = 0; x < terminalSize.X - 1; x++)
-						{
-							Vector3i value = framebuffer.get(x + (y * terminalSize.X));
-							if (value != lastColor)
-							{
-								System.out.print(getAnsiCodeForFgRgb24(value));
-								lastColor = value;
-							}
-							System.out.print('\u2588');
-						}
-						System.out.print(IsWindows ? '\n' : "\u001b[1E"); // Move to the beginning of the next line.
-					}
-					break;
-
-				default:
-					setConsoleCursorPosition(2, terminalSize.Y / 2);
-					System.out.print("Render mode not supported: " + consoleRenderMode);
-					MainLoop = false;
-					break;
+				resolutionScaler.update(System.nanoTime() - frameTimer.frameStart);
 			}
 
-			// Print status text on top of the rendered scene.
-			setConsoleCursorPosition(0, terminalSize.Y - 1);
-			System.out.print(getAnsiCodeForFgRgb24(new Vector3i(255, 255, 255)));
-			System.out.print("\u001b[K  Frame " + frame + " | " + framesPerSecond + " FPS | " + trianglesPerFrame + " triangles | Press 'q' to exit");
-
 			// Update frame data.
 			frame++;
 			currentSecondFrame++;
@@ -1283,10 +6380,19 @@ class ThreeDee
 			{
 				lastSecondTimestamp = currentTimestamp;
 				framesPerSecond = currentSecondFrame;
+				frameStatistics.endSecond();
 				currentSecondFrame = 0;
 			}
 		}
-		
+
+		exitTerminal();
+	}
+
+	/**
+	 * Gives the terminal back to the shell, and prints the statistics summary (if enabled).
+	 */
+	public static void exitTerminal() throws InterruptedException, IOException
+	{
 		setConsoleCursorPosition(0, 0);
 		
 		// Revert changes to the terminal input mode (canonical mode is a must-have when returning to the shell).
@@ -1296,6 +6402,14 @@ class ThreeDee
 			String[] canonicalModeCmdUnix = { "/bin/sh", "-c", "stty cooked < /dev/tty" };
 			Runtime.getRuntime().exec(canonicalModeCmdUnix).waitFor();
 		}
+
+		if (showStats)
+		{
+			// Clear the screen (the summary would be mixed with the last frame otherwise).
+			System.out.print("\u001b[2J");
+			setConsoleCursorPosition(0, 0);
+			System.out.print(frameStatistics.getSummary());
+		}
 	}
 
 	public static char getShadeCharFromDouble(double input)
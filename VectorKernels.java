@@ -0,0 +1,67 @@
+import jdk.incubator.vector.*;
+
+/**
+ * `SimdKernels` implementation built on top of the (incubating) Vector API.
+ * 
+ * This file is optional. Compile it after `ThreeDee.java` with `javac --add-modules jdk.incubator.vector VectorKernels.java`,
+ * and run the program with `java --add-modules jdk.incubator.vector ThreeDee` to enable it.
+ * 
+ * Every operation is done in the same order as the scalar code, so both produce exactly the same results.
+ */
+class VectorKernels implements SimdKernels
+{
+	static final VectorSpecies<Float> SPECIES = FloatVector.SPECIES_PREFERRED;
+	static final VectorSpecies<Long> EDGE_SPECIES = LongVector.SPECIES_PREFERRED;
+
+	// 0, 1, 2, ... (one per lane): times the X step of an edge function, the offset of every pixel of a run.
+	static final LongVector LANE_OFFSETS = LongVector.zero(EDGE_SPECIES).addIndex(1);
+
+	@Override
+	public int lanes()
+	{
+		return EDGE_SPECIES.length();
+	}
+
+	@Override
+	public String describe()
+	{
+		return SPECIES.vectorBitSize() + "-bit FloatVector species (" + SPECIES.length() + " lanes, " + EDGE_SPECIES.length() + " pixels per coverage mask)";
+	}
+
+	@Override
+	public void transform(Matrix4x4f matrix, float[] inX, float[] inY, float[] inZ, float[] outX, float[] outY, float[] outZ, int outOffset, int count)
+	{
+		int i = 0;
+		for (int bound = SPECIES.loopBound(count); i < bound; i += SPECIES.length())
+		{
+			FloatVector vx = FloatVector.fromArray(SPECIES, inX, i);
+			FloatVector vy = FloatVector.fromArray(SPECIES, inY, i);
+			FloatVector vz = FloatVector.fromArray(SPECIES, inZ, i);
+
+			FloatVector w = vx.mul(matrix.A41).add(vy.mul(matrix.A42)).add(vz.mul(matrix.A43)).add(matrix.A44);
+			vx.mul(matrix.A11).add(vy.mul(matrix.A12)).add(vz.mul(matrix.A13)).add(matrix.A14).div(w).intoArray(outX, outOffset + i);
+			vx.mul(matrix.A21).add(vy.mul(matrix.A22)).add(vz.mul(matrix.A23)).add(matrix.A24).div(w).intoArray(outY, outOffset + i);
+			vx.mul(matrix.A31).add(vy.mul(matrix.A32)).add(vz.mul(matrix.A33)).add(matrix.A34).div(w).intoArray(outZ, outOffset + i);
+		}
+
+		// Remaining vertices (less than a full vector).
+		for (; i < count; i++)
+		{
+			float vx = inX[i], vy = inY[i], vz = inZ[i];
+			float w = (matrix.A41 * vx) + (matrix.A42 * vy) + (matrix.A43 * vz) + matrix.A44;
+			outX[outOffset + i] = ((matrix.A11 * vx) + (matrix.A12 * vy) + (matrix.A13 * vz) + matrix.A14) / w;
+			outY[outOffset + i] = ((matrix.A21 * vx) + (matrix.A22 * vy) + (matrix.A23 * vz) + matrix.A24) / w;
+			outZ[outOffset + i] = ((matrix.A31 * vx) + (matrix.A32 * vy) + (matrix.A33 * vz) + matrix.A34) / w;
+		}
+	}
+
+	@Override
+	public long coverageMask(long w0, long w1, long w2, long stepX0, long stepX1, long stepX2)
+	{
+		// The sign bit of the OR is set if any of the values is negative, same as the scalar test.
+		LongVector w = LANE_OFFSETS.mul(stepX0).add(w0)
+			.or(LANE_OFFSETS.mul(stepX1).add(w1))
+			.or(LANE_OFFSETS.mul(stepX2).add(w2));
+		return w.compare(VectorOperators.GE, 0).toLong();
+	}
+}